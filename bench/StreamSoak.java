@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.OpCode;
+import common.data.EncryptedData;
+import common.messages.Message;
+import common.messages.ObjectStreamMessageChannel;
+import common.messages.types.request.ETMessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Soak test of the object stream transport. It pushes millions of
+ *         {@code OP_ET} messages through a pair of
+ *         {@link ObjectStreamMessageChannel}s connected by pipes, and reports
+ *         the live heap after a garbage collection at regular intervals. With
+ *         the resets the heap stays flat, while without them both object
+ *         streams keep every message sent through them.
+ *
+ *         Usage: {@code StreamSoak [messages] [reset-messages] [reset-bytes]},
+ *         with the defaults of the channel for the resets, and {@code 0} to
+ *         disable them.
+ */
+public class StreamSoak {
+
+    private static final int REPORTS = 10;
+    private static final int PIPE_BYTES = 1024 * 1024;
+
+    /**
+     * Runs the soak test.
+     *
+     * @param args The number of messages and the reset policy.
+     * @throws Exception If the channels fail.
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int resetMessages = args.length > 1 ? Integer.parseInt(args[1])
+                : ObjectStreamMessageChannel.DEFAULT_RESET_MESSAGES;
+        long resetBytes = args.length > 2 ? Long.parseLong(args[2]) : ObjectStreamMessageChannel.DEFAULT_RESET_BYTES;
+
+        PipedOutputStream toReceiver = new PipedOutputStream();
+        PipedInputStream receiverIn = new PipedInputStream(toReceiver, PIPE_BYTES);
+        PipedOutputStream toSender = new PipedOutputStream();
+        PipedInputStream senderIn = new PipedInputStream(toSender, PIPE_BYTES);
+
+        Thread receiver = new Thread(() -> {
+            try {
+                ObjectStreamMessageChannel channel = new ObjectStreamMessageChannel(toSender, receiverIn,
+                        resetMessages, resetBytes);
+                for (int i = 0; i < messages; i++)
+                    channel.readMessage();
+            } catch (IOException | ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+        }, "receiver");
+        receiver.start();
+        ObjectStreamMessageChannel sender = new ObjectStreamMessageChannel(toReceiver, senderIn, resetMessages,
+                resetBytes);
+
+        System.out.println("messages=" + messages + " resetMessages=" + resetMessages + " resetBytes=" + resetBytes);
+        long baseline = liveHeap();
+        long start = System.nanoTime();
+        int interval = Math.max(1, messages / REPORTS);
+        for (int i = 1; i <= messages; i++) {
+            Map<String, EncryptedData> temperatures = new HashMap<>();
+            temperatures.put("domain" + i % 8, new EncryptedData(new byte[64], new byte[16]));
+            sender.writeMessage(new Message(OpCode.OP_ET, new ETMessageData(temperatures), i));
+            if (i % interval == 0 || i == messages) {
+                long heap = liveHeap();
+                System.out.printf("%,12d messages  live heap %,8d KiB (%+,d KiB)  retained %,d bytes%n", i,
+                        heap / 1024, (heap - baseline) / 1024, sender.getRetainedBytes());
+            }
+        }
+        receiver.join();
+        System.out.printf("done in %,d ms, %,d resets%n", (System.nanoTime() - start) / 1_000_000,
+                ObjectStreamMessageChannel.getTotalResets());
+    }
+
+    /**
+     * Gets the heap used after a garbage collection.
+     *
+     * @return The live heap, in bytes.
+     * @throws InterruptedException If interrupted while waiting for the
+     *                              collection.
+     */
+    private static long liveHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
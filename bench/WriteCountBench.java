@@ -0,0 +1,238 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import common.OpCode;
+import common.data.EncryptedData;
+import common.messages.FramedMessageChannel;
+import common.messages.Message;
+import common.messages.MessageChannel;
+import common.messages.MessageFraming;
+import common.messages.ObjectStreamMessageChannel;
+import common.messages.types.request.ETMessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Benchmark of the writes of the message channels. Each message is
+ *         written into a sink that counts the write calls reaching it, which is
+ *         what the socket stream turns into TLS records and system calls, so
+ *         the count per message is an upper bound on both. The unbuffered
+ *         writes the channels did before they were buffered are measured the
+ *         same way, as the baseline. Each message is a new object, as in a
+ *         session, so the object streams can't write it as a back reference.
+ *
+ *         Usage: {@code WriteCountBench [messages]}.
+ */
+public class WriteCountBench {
+
+    private static final int PIPELINED = 4;
+
+    /**
+     * Output stream that counts the write calls reaching it, discarding the
+     * bytes.
+     */
+    private static final class CountingSink extends OutputStream {
+
+        private long writes = 0;
+
+        @Override
+        public void write(int b) {
+            this.writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            this.writes++;
+        }
+    }
+
+    /**
+     * Interface of a way of writing messages.
+     */
+    private interface Writer {
+
+        /**
+         * Writes the messages into a sink.
+         *
+         * @param sink     The sink of the writes.
+         * @param messages The messages to write.
+         * @param count    The number of messages.
+         * @throws IOException If it fails to write a message.
+         */
+        void write(CountingSink sink, IntFunction<Message> messages, int count) throws IOException;
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The number of messages of each case.
+     * @throws IOException If it fails to write a message.
+     */
+    public static void main(String[] args) throws IOException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        IntFunction<Message> ok = i -> new Message(OpCode.OK, null, i);
+        IntFunction<Message> et = i -> {
+            Map<String, EncryptedData> temperatures = new HashMap<>();
+            temperatures.put("domain", new EncryptedData(new byte[16], new byte[80]));
+            return new Message(OpCode.OP_ET, new ETMessageData(temperatures), i);
+        };
+
+        System.out.printf("%-34s %10s %10s%n", "writes per message", "before", "after");
+        report("stream, OK response", ok, messages, WriteCountBench::unbufferedStream, WriteCountBench::streamChannel);
+        report("stream, OP_ET request", et, messages, WriteCountBench::unbufferedStream,
+                WriteCountBench::streamChannel);
+        report("framed, OP_ET request", et, messages, WriteCountBench::unbufferedFrames,
+                WriteCountBench::framedChannel);
+        report("stream, " + PIPELINED + " pipelined responses", ok, messages, WriteCountBench::streamChannel,
+                (sink, factory, count) -> corked(new ObjectStreamMessageChannel(sink, streamHeader()), sink,
+                        factory, count));
+        report("framed, " + PIPELINED + " pipelined responses", ok, messages, WriteCountBench::framedChannel,
+                (sink, factory, count) -> corked(new FramedMessageChannel(sink, InputStream.nullInputStream(),
+                        MessageFraming.DEFAULT_MAX_FRAME_BYTES), sink, factory, count));
+    }
+
+    /**
+     * Prints the writes per message of a case, before and after.
+     *
+     * @param name     The name of the case.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @param before   The writes before the channels were buffered.
+     * @param after    The writes of the channels.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void report(String name, IntFunction<Message> messages, int count, Writer before,
+            Writer after) throws IOException {
+        System.out.printf("%-34s %10.2f %10.2f%n", name, count(before, messages, count),
+                count(after, messages, count));
+    }
+
+    /**
+     * Counts the writes per message of a way of writing messages.
+     *
+     * @param writer   The way of writing the messages.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @return The write calls per message.
+     * @throws IOException If it fails to write a message.
+     */
+    private static double count(Writer writer, IntFunction<Message> messages, int count) throws IOException {
+        CountingSink sink = new CountingSink();
+        writer.write(sink, messages, count);
+        return (double) sink.writes / count;
+    }
+
+    /**
+     * Writes the messages with an object stream straight over the sink, each
+     * flushed on its own and the stream reset as often as the channel does.
+     *
+     * @param sink     The sink of the writes.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void unbufferedStream(CountingSink sink, IntFunction<Message> messages, int count)
+            throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(sink);
+        out.flush();
+        sink.writes = 0;
+        for (int i = 1; i <= count; i++) {
+            out.writeObject(messages.apply(i));
+            out.flush();
+            if (i % ObjectStreamMessageChannel.DEFAULT_RESET_MESSAGES == 0) {
+                out.reset();
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Writes each message in a frame straight over the sink.
+     *
+     * @param sink     The sink of the writes.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void unbufferedFrames(CountingSink sink, IntFunction<Message> messages, int count)
+            throws IOException {
+        for (int i = 1; i <= count; i++) {
+            sink.write(MessageFraming.encodeFrame(messages.apply(i)));
+            sink.flush();
+        }
+    }
+
+    /**
+     * Writes the messages with an object stream channel, each flushed on its
+     * own.
+     *
+     * @param sink     The sink of the writes.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void streamChannel(CountingSink sink, IntFunction<Message> messages, int count)
+            throws IOException {
+        MessageChannel channel = new ObjectStreamMessageChannel(sink, streamHeader());
+        sink.writes = 0;
+        for (int i = 1; i <= count; i++)
+            channel.writeMessage(messages.apply(i));
+    }
+
+    /**
+     * Writes the messages with a framed channel, each flushed on its own.
+     *
+     * @param sink     The sink of the writes.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void framedChannel(CountingSink sink, IntFunction<Message> messages, int count) throws IOException {
+        MessageChannel channel = new FramedMessageChannel(sink, InputStream.nullInputStream(),
+                MessageFraming.DEFAULT_MAX_FRAME_BYTES);
+        for (int i = 1; i <= count; i++)
+            channel.writeMessage(messages.apply(i));
+    }
+
+    /**
+     * Writes the messages with a channel in groups of pipelined responses, only
+     * the last of each group flushing, as the server does.
+     *
+     * @param channel  The channel to write to.
+     * @param sink     The sink of the writes.
+     * @param messages The messages to write.
+     * @param count    The number of messages.
+     * @throws IOException If it fails to write a message.
+     */
+    private static void corked(MessageChannel channel, CountingSink sink, IntFunction<Message> messages, int count)
+            throws IOException {
+        sink.writes = 0;
+        for (int i = 1; i <= count; i++) {
+            channel.bufferMessage(messages.apply(i));
+            if (i % PIPELINED == 0 || i == count)
+                channel.flush();
+        }
+    }
+
+    /**
+     * Creates the header of an object stream, for the input of a channel that
+     * never reads.
+     *
+     * @return The stream with the header.
+     * @throws IOException If it fails to write the header.
+     */
+    private static InputStream streamHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        new ObjectOutputStream(header).flush();
+        return new ByteArrayInputStream(header.toByteArray());
+    }
+}
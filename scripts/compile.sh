@@ -4,10 +4,10 @@ cd src
 
 javac common/*.java common/data/*.java common/messages/*.java common/messages/types/*/*.java
 javac iotdevice/*.java iotdevice/utils/*.java
-javac iotserver/*.java iotserver/managers/*.java iotserver/utils/*.java iotserver/persistance/*.java
+javac iotserver/*.java iotserver/managers/*.java iotserver/utils/*.java iotserver/persistance/*.java iotserver/network/*.java iotserver/twofactor/*.java
 
 echo "Main-Class: iotserver.IoTServer" > MANIFEST.MF
-jar cfm ../bin/IoTServer.jar MANIFEST.MF common/*.class common/data/*.class common/messages/*.class common/messages/types/*/*.class  iotserver/*.class iotserver/managers/*.class iotserver/utils/*.class iotserver/persistance/*.class
+jar cfm ../bin/IoTServer.jar MANIFEST.MF common/*.class common/data/*.class common/messages/*.class common/messages/types/*/*.class  iotserver/*.class iotserver/managers/*.class iotserver/utils/*.class iotserver/persistance/*.class iotserver/network/*.class iotserver/twofactor/*.class
 echo "Main-Class: iotdevice.IoTDevice" > MANIFEST.MF
 jar cfm ../bin/IoTDevice.jar MANIFEST.MF common/*.class common/data/*.class common/messages/*.class common/messages/types/*/*.class  iotdevice/*.class iotdevice/utils/*.class
 cp ../bin/IoTDevice.jar ../bin/deviceCopy/IoTDevice.jar
@@ -17,7 +17,7 @@ rm MANIFEST.MF
 
 rm common/*.class common/data/*.class common/messages/*.class common/messages/types/*/*.class 
 rm iotdevice/*.class iotdevice/utils/*.class
-rm iotserver/*.class iotserver/managers/*.class iotserver/utils/*.class iotserver/persistance/*.class
+rm iotserver/*.class iotserver/managers/*.class iotserver/utils/*.class iotserver/persistance/*.class iotserver/network/*.class iotserver/twofactor/*.class
 
 cd ../scripts
 
@@ -19,20 +19,27 @@ public enum OpCode {
     NODATA,
     NOID,
     ALREADY_ADDED,
+    BUSY,
+    PONG,
+    THROTTLED,
 
     OP_CREATE,
     OP_ADD,
     OP_RD,
     OP_ET,
+    OP_ET_BATCH,
     OP_EI,
     OP_RT,
     OP_RI,
     OP_MD,
+    OP_PING,
+    OP_CLOSE_CHANNEL,
     
     OP_DOMAIN_KEYS,
     OP_KEY_AUTHENTICATION,
     OP_SIGNED_DATA,
     OP_2FA_AUTHENTICATION,
     OP_REMOTE_ATTESTATION,
-    OP_REMOTE_ATTESTATION_HASH
+    OP_REMOTE_ATTESTATION_HASH,
+    OP_RESUME
 }
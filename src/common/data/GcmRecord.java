@@ -0,0 +1,122 @@
+package common.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class with the methods to seal and open the compact AES-GCM records
+ *         of encrypted data. A record keeps the ciphertext and its tag in the
+ *         data of an {@link EncryptedData} and a 13 byte header in its iv: the
+ *         format byte and the 12 byte nonce, instead of the encoded parameters
+ *         of a PBE cipher. The PBE parameters always start with a DER sequence,
+ *         so both kinds of data can be told apart.
+ *         The AES key of a domain is derived once from its PBE key, so every
+ *         member of the domain derives the same key.
+ */
+public final class GcmRecord {
+
+    public static final byte FORMAT_AES_GCM = 1;
+    public static final int NONCE_BYTES = 12;
+    public static final int HEADER_BYTES = 1 + NONCE_BYTES;
+
+    private static final int TAG_BITS = 128;
+    private static final int KEY_BITS = 128;
+    private static final int KEY_ITERATIONS = 10000;
+    private static final String KEY_SALT_PREFIX = "iotdevice-telemetry:";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Constructor of the class
+     */
+    private GcmRecord() {
+        throw new UnsupportedOperationException("Cannot create instance of " + getClass().getName());
+    }
+
+    /**
+     * Derives the AES key of a domain from its PBE key, with the name of the
+     * domain as salt.
+     * 
+     * @param domainKey  the PBE key of the domain
+     * @param domainName the name of the domain
+     * @return the AES key of the domain
+     * @throws GeneralSecurityException if the key can't be derived
+     */
+    public static SecretKey deriveKey(Key domainKey, String domainName) throws GeneralSecurityException {
+        // the encoding of a PBE key is its password, one byte per char
+        char[] password = new String(domainKey.getEncoded(), StandardCharsets.ISO_8859_1).toCharArray();
+        byte[] salt = MessageDigest.getInstance("SHA-256")
+                .digest((KEY_SALT_PREFIX + domainName).getBytes(StandardCharsets.UTF_8));
+        PBEKeySpec spec = new PBEKeySpec(password, salt, KEY_ITERATIONS, KEY_BITS);
+        try {
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return new SecretKeySpec(key, "AES");
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Encrypts data into a record
+     * 
+     * @param key       the AES key of the domain
+     * @param plaintext the data to encrypt
+     * @param aad       the data authenticated with the record, such as the name
+     *                  of the domain
+     * @return the record
+     * @throws GeneralSecurityException if the data can't be encrypted
+     */
+    public static EncryptedData seal(SecretKey key, byte[] plaintext, byte[] aad) throws GeneralSecurityException {
+        byte[] header = new byte[HEADER_BYTES];
+        header[0] = FORMAT_AES_GCM;
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, header, 1, NONCE_BYTES);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(aad);
+        return new EncryptedData(cipher.doFinal(plaintext), header);
+    }
+
+    /**
+     * Decrypts a record, checking its tag
+     * 
+     * @param key    the AES key of the domain
+     * @param record the record
+     * @param aad    the data authenticated with the record
+     * @return the decrypted data
+     * @throws GeneralSecurityException if the record is not valid or was changed
+     */
+    public static byte[] open(SecretKey key, EncryptedData record, byte[] aad) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record.getIV(), 1, NONCE_BYTES));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(record.getData());
+    }
+
+    /**
+     * Checks if encrypted data is a record of this format
+     * 
+     * @param data the encrypted data
+     * @return true if the data is a record, false if it was encrypted with PBE
+     */
+    public static boolean isRecord(EncryptedData data) {
+        byte[] header = data.getIV();
+        return header != null && header.length == HEADER_BYTES && header[0] == FORMAT_AES_GCM;
+    }
+}
@@ -0,0 +1,47 @@
+package common.data;
+
+import java.io.Serializable;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents an encrypted temperature and the time it was
+ *         read by the device.
+ */
+public class TemperatureReading implements Serializable {
+
+    private final long timestamp;
+    private final EncryptedData temperature;
+
+    /**
+     * Constructor of the class.
+     * 
+     * @param timestamp   the time the temperature was read, in milliseconds
+     *                    since the epoch
+     * @param temperature the encrypted temperature
+     */
+    public TemperatureReading(long timestamp, EncryptedData temperature) {
+        this.timestamp = timestamp;
+        this.temperature = temperature;
+    }
+
+    /**
+     * Gets the time the temperature was read.
+     * 
+     * @return the time the temperature was read, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the encrypted temperature.
+     * 
+     * @return the encrypted temperature
+     */
+    public EncryptedData getTemperature() {
+        return temperature;
+    }
+}
@@ -0,0 +1,488 @@
+package common.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.OpCode;
+import common.data.EncryptedData;
+import common.data.TemperatureReading;
+import common.messages.types.request.*;
+import common.messages.types.response.*;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class with the methods to encode and decode messages in a compact
+ *         binary layout, without Java serialization. A payload starts with
+ *         {@link #MAGIC}, followed by the one byte code of the opcode, the
+ *         correlation id, the channel id, the one byte type of the data and the
+ *         fields of the data in a fixed order. Integers are big-endian, and
+ *         strings and byte arrays are prefixed by their length, -1 meaning null.
+ *         Every length is checked against the rest of the payload before
+ *         anything is allocated.
+ */
+public final class BinaryCodec {
+
+    public static final byte MAGIC = (byte) 0xB1;
+
+    // the wire code of an opcode is its index, so new opcodes go at the end
+    private static final OpCode[] OPCODES = {
+            OpCode.OK, OpCode.NOK, OpCode.ERROR, OpCode.NOPERM, OpCode.NODM, OpCode.NOUSER, OpCode.NODATA,
+            OpCode.NOID, OpCode.ALREADY_ADDED, OpCode.BUSY, OpCode.PONG, OpCode.THROTTLED, OpCode.OP_CREATE,
+            OpCode.OP_ADD, OpCode.OP_RD, OpCode.OP_ET, OpCode.OP_EI, OpCode.OP_RT, OpCode.OP_RI, OpCode.OP_MD,
+            OpCode.OP_PING, OpCode.OP_CLOSE_CHANNEL, OpCode.OP_DOMAIN_KEYS, OpCode.OP_KEY_AUTHENTICATION,
+            OpCode.OP_SIGNED_DATA, OpCode.OP_2FA_AUTHENTICATION, OpCode.OP_REMOTE_ATTESTATION,
+            OpCode.OP_REMOTE_ATTESTATION_HASH, OpCode.OP_ET_BATCH, OpCode.OP_RESUME };
+    private static final Map<OpCode, Byte> OPCODE_CODES = new EnumMap<>(OpCode.class);
+
+    private static final byte NO_DATA = 0;
+    private static final byte ADD_USER = 1;
+    private static final byte CREATE_DOMAIN = 2;
+    private static final byte EI = 3;
+    private static final byte ET = 4;
+    private static final byte ERROR = 5;
+    private static final byte FA2 = 6;
+    private static final byte KEY_AUTHENTICATION = 7;
+    private static final byte RD = 8;
+    private static final byte RI = 9;
+    private static final byte RT = 10;
+    private static final byte REMOTE_ATTESTATION = 11;
+    private static final byte REMOTE_ATTESTATION_STEP2 = 12;
+    private static final byte BUSY = 13;
+    private static final byte DOMAIN_KEYS = 14;
+    private static final byte KEY_AUTHENTICATION_RESPONSE = 15;
+    private static final byte MD_RESPONSE = 16;
+    private static final byte RI_RESPONSE = 17;
+    private static final byte RT_RESPONSE = 18;
+    private static final byte REMOTE_ATTESTATION_RESPONSE = 19;
+    private static final byte ET_BATCH = 20;
+    private static final byte RESUME = 21;
+    private static final byte RESUMPTION_TICKET = 22;
+    // data without a fixed layout, sent with Java serialization
+    private static final byte SERIALIZED = (byte) 0xFF;
+
+    static {
+        for (int i = 0; i < OPCODES.length; i++)
+            OPCODE_CODES.put(OPCODES[i], (byte) i);
+    }
+
+    /**
+     * Constructor of the class
+     */
+    private BinaryCodec() {
+        throw new UnsupportedOperationException("Cannot create instance of " + getClass().getName());
+    }
+
+    /**
+     * Checks if a payload was encoded by this codec.
+     * 
+     * @param payload the payload of a frame
+     * @return true if the payload is binary, false if it is an object stream
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && payload[0] == MAGIC;
+    }
+
+    /**
+     * Encodes a message into a payload, after a header of a given size left for
+     * the caller.
+     * 
+     * @param message     the message to encode
+     * @param headerBytes the number of bytes left before the payload
+     * @return the bytes of the header and of the payload
+     * @throws IOException if the data of the message can't be encoded
+     */
+    public static byte[] encode(Message message, int headerBytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+        baos.write(new byte[headerBytes]);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(MAGIC);
+        out.writeByte(OPCODE_CODES.get(message.getOpCode()));
+        out.writeInt(message.getCorrelationId());
+        out.writeInt(message.getChannelId());
+        writeData(out, message.getData());
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decodes a binary payload into a message.
+     * 
+     * @param payload the payload of a frame
+     * @return the decoded message
+     * @throws IOException            if the payload is not a valid message
+     * @throws ClassNotFoundException if the class of serialized data could not be
+     *                                found
+     */
+    public static Message decode(byte[] payload) throws IOException, ClassNotFoundException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        try {
+            if (in.get() != MAGIC)
+                throw new StreamCorruptedException("Not a binary payload!");
+            int code = in.get() & 0xFF;
+            if (code >= OPCODES.length)
+                throw new StreamCorruptedException("Invalid opcode " + code + "!");
+            int correlationId = in.getInt();
+            int channelId = in.getInt();
+            MessageData data = readData(in);
+            if (in.hasRemaining())
+                throw new StreamCorruptedException("Trailing bytes in payload!");
+            return new Message(OPCODES[code], data, correlationId, channelId);
+        } catch (BufferUnderflowException e) {
+            throw new StreamCorruptedException("Truncated payload!");
+        }
+    }
+
+    /**
+     * Writes the type and the fields of the data of a message.
+     * 
+     * @param out  the stream to write to
+     * @param data the data of the message, or null
+     * @throws IOException if the data can't be encoded
+     */
+    private static void writeData(DataOutputStream out, MessageData data) throws IOException {
+        if (data == null) {
+            out.writeByte(NO_DATA);
+        } else if (data instanceof AddUserMessageData) {
+            AddUserMessageData d = (AddUserMessageData) data;
+            out.writeByte(ADD_USER);
+            writeString(out, d.getUserId());
+            writeString(out, d.getDomainName());
+            writeBytes(out, d.getDomainKey());
+        } else if (data instanceof CreateDomainMessageData) {
+            out.writeByte(CREATE_DOMAIN);
+            writeString(out, ((CreateDomainMessageData) data).getDomainName());
+        } else if (data instanceof EIMessageData) {
+            out.writeByte(EI);
+            writeEncryptedMap(out, ((EIMessageData) data).getImages());
+        } else if (data instanceof ETMessageData) {
+            out.writeByte(ET);
+            writeEncryptedMap(out, ((ETMessageData) data).getDomainsTemperatures());
+        } else if (data instanceof ETBatchMessageData) {
+            Map<String, List<TemperatureReading>> domainsReadings = ((ETBatchMessageData) data).getDomainsReadings();
+            out.writeByte(ET_BATCH);
+            out.writeInt(domainsReadings.size());
+            for (Map.Entry<String, List<TemperatureReading>> entry : domainsReadings.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (TemperatureReading reading : entry.getValue()) {
+                    out.writeLong(reading.getTimestamp());
+                    writeEncrypted(out, reading.getTemperature());
+                }
+            }
+        } else if (data instanceof ErrorMessageData) {
+            out.writeByte(ERROR);
+            writeString(out, ((ErrorMessageData) data).getMessage());
+        } else if (data instanceof FA2AuthenticationRequestData) {
+            out.writeByte(FA2);
+            writeString(out, ((FA2AuthenticationRequestData) data).getUserCode());
+        } else if (data instanceof KeyAuthenticationRequestData) {
+            out.writeByte(KEY_AUTHENTICATION);
+            writeString(out, ((KeyAuthenticationRequestData) data).getUserId());
+        } else if (data instanceof RDMessageData) {
+            out.writeByte(RD);
+            writeString(out, ((RDMessageData) data).getDomainName());
+        } else if (data instanceof RIMessageData) {
+            out.writeByte(RI);
+            writeString(out, ((RIMessageData) data).getUserIdDevId());
+        } else if (data instanceof RTMessageData) {
+            out.writeByte(RT);
+            writeString(out, ((RTMessageData) data).getDomainName());
+        } else if (data instanceof RemoteAttestationRequestData) {
+            out.writeByte(REMOTE_ATTESTATION);
+            out.writeInt(((RemoteAttestationRequestData) data).getDevId());
+        } else if (data instanceof RemoteAttestationRequestDataStep2) {
+            out.writeByte(REMOTE_ATTESTATION_STEP2);
+            writeBytes(out, ((RemoteAttestationRequestDataStep2) data).getDevHash());
+        } else if (data instanceof BusyResponseData) {
+            out.writeByte(BUSY);
+            out.writeLong(((BusyResponseData) data).getRetryAfterMillis());
+        } else if (data instanceof DomainKeysResponseData) {
+            Map<String, byte[]> domainKeys = ((DomainKeysResponseData) data).getDomainKeys();
+            out.writeByte(DOMAIN_KEYS);
+            out.writeInt(domainKeys.size());
+            for (Map.Entry<String, byte[]> entry : domainKeys.entrySet()) {
+                writeString(out, entry.getKey());
+                writeBytes(out, entry.getValue());
+            }
+        } else if (data instanceof KeyAuthenticationResponseData) {
+            KeyAuthenticationResponseData d = (KeyAuthenticationResponseData) data;
+            out.writeByte(KEY_AUTHENTICATION_RESPONSE);
+            out.writeBoolean(d.isNewUser());
+            out.writeLong(d.getNonce());
+        } else if (data instanceof MDResponseMessageData) {
+            List<String> domainNames = ((MDResponseMessageData) data).getDomainNames();
+            out.writeByte(MD_RESPONSE);
+            out.writeInt(domainNames.size());
+            for (String domainName : domainNames)
+                writeString(out, domainName);
+        } else if (data instanceof RIResponseData) {
+            RIResponseData d = (RIResponseData) data;
+            out.writeByte(RI_RESPONSE);
+            writeEncrypted(out, d.getEncryptedData());
+            writeBytes(out, d.getWrappedDomainKey());
+        } else if (data instanceof RTResponseData) {
+            RTResponseData d = (RTResponseData) data;
+            out.writeByte(RT_RESPONSE);
+            writeEncryptedMap(out, d.getDeviceTemperatures());
+            writeBytes(out, d.getWrappedDomainKey());
+        } else if (data instanceof RemoteAttestationResponseData) {
+            out.writeByte(REMOTE_ATTESTATION_RESPONSE);
+            out.writeLong(((RemoteAttestationResponseData) data).getNonce());
+        } else if (data instanceof ResumeRequestData) {
+            out.writeByte(RESUME);
+            writeBytes(out, ((ResumeRequestData) data).getTicket());
+        } else if (data instanceof ResumptionTicketData) {
+            ResumptionTicketData d = (ResumptionTicketData) data;
+            out.writeByte(RESUMPTION_TICKET);
+            writeBytes(out, d.getTicket());
+            out.writeLong(d.getValidMillis());
+        } else {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(serialized)) {
+                objectOut.writeObject(data);
+            }
+            out.writeByte(SERIALIZED);
+            writeBytes(out, serialized.toByteArray());
+        }
+    }
+
+    /**
+     * Reads the type and the fields of the data of a message.
+     * 
+     * @param in the payload, positioned at the type of the data
+     * @return the data of the message, or null
+     * @throws IOException            if the data is not valid
+     * @throws ClassNotFoundException if the class of serialized data could not be
+     *                                found
+     */
+    private static MessageData readData(ByteBuffer in) throws IOException, ClassNotFoundException {
+        byte type = in.get();
+        switch (type) {
+            case NO_DATA:
+                return null;
+            case ADD_USER:
+                return new AddUserMessageData(readString(in), readString(in), readBytes(in));
+            case CREATE_DOMAIN:
+                return new CreateDomainMessageData(readString(in));
+            case EI:
+                return new EIMessageData(readEncryptedMap(in));
+            case ET:
+                return new ETMessageData(readEncryptedMap(in));
+            case ET_BATCH: {
+                int size = readCount(in, 8);
+                Map<String, List<TemperatureReading>> domainsReadings = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String domainName = readString(in);
+                    int count = readCount(in, 12);
+                    List<TemperatureReading> readings = new ArrayList<>(count);
+                    for (int j = 0; j < count; j++)
+                        readings.add(new TemperatureReading(in.getLong(), readEncrypted(in)));
+                    domainsReadings.put(domainName, readings);
+                }
+                return new ETBatchMessageData(domainsReadings);
+            }
+            case ERROR:
+                return new ErrorMessageData(readString(in));
+            case FA2:
+                return new FA2AuthenticationRequestData(readString(in));
+            case KEY_AUTHENTICATION:
+                return new KeyAuthenticationRequestData(readString(in));
+            case RD:
+                return new RDMessageData(readString(in));
+            case RI:
+                return new RIMessageData(readString(in));
+            case RT:
+                return new RTMessageData(readString(in));
+            case REMOTE_ATTESTATION:
+                return new RemoteAttestationRequestData(in.getInt());
+            case REMOTE_ATTESTATION_STEP2:
+                return new RemoteAttestationRequestDataStep2(readBytes(in));
+            case BUSY:
+                return new BusyResponseData(in.getLong());
+            case DOMAIN_KEYS: {
+                int size = readCount(in, 8);
+                Map<String, byte[]> domainKeys = new HashMap<>();
+                for (int i = 0; i < size; i++)
+                    domainKeys.put(readString(in), readBytes(in));
+                return new DomainKeysResponseData(domainKeys);
+            }
+            case KEY_AUTHENTICATION_RESPONSE:
+                return new KeyAuthenticationResponseData(in.get() != 0, in.getLong());
+            case MD_RESPONSE: {
+                int size = readCount(in, 4);
+                List<String> domainNames = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                    domainNames.add(readString(in));
+                return new MDResponseMessageData(domainNames);
+            }
+            case RI_RESPONSE:
+                return new RIResponseData(readEncrypted(in), readBytes(in));
+            case RT_RESPONSE:
+                return new RTResponseData(readEncryptedMap(in), readBytes(in));
+            case REMOTE_ATTESTATION_RESPONSE:
+                return new RemoteAttestationResponseData(in.getLong());
+            case RESUME:
+                return new ResumeRequestData(readBytes(in));
+            case RESUMPTION_TICKET:
+                return new ResumptionTicketData(readBytes(in), in.getLong());
+            case SERIALIZED:
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    objectIn.setObjectInputFilter(new MessageInputFilter());
+                    Object object = objectIn.readObject();
+                    if (!(object instanceof MessageData))
+                        throw new StreamCorruptedException("Payload doesn't contain message data!");
+                    return (MessageData) object;
+                }
+            default:
+                throw new StreamCorruptedException("Invalid data type " + type + "!");
+        }
+    }
+
+    /**
+     * Writes a map of names to encrypted data.
+     * 
+     * @param out the stream to write to
+     * @param map the map to write
+     * @throws IOException if it fails to write
+     */
+    private static void writeEncryptedMap(DataOutputStream out, Map<String, EncryptedData> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, EncryptedData> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeEncrypted(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a map of names to encrypted data.
+     * 
+     * @param in the payload
+     * @return the read map
+     * @throws StreamCorruptedException if the map is not valid
+     */
+    private static Map<String, EncryptedData> readEncryptedMap(ByteBuffer in) throws StreamCorruptedException {
+        int size = readCount(in, 8);
+        Map<String, EncryptedData> map = new HashMap<>();
+        for (int i = 0; i < size; i++)
+            map.put(readString(in), readEncrypted(in));
+        return map;
+    }
+
+    /**
+     * Writes encrypted data, as its data and its parameters.
+     * 
+     * @param out  the stream to write to
+     * @param data the encrypted data, or null
+     * @throws IOException if it fails to write
+     */
+    private static void writeEncrypted(DataOutputStream out, EncryptedData data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeBytes(out, data.getData());
+        writeBytes(out, data.getIV());
+    }
+
+    /**
+     * Reads encrypted data.
+     * 
+     * @param in the payload
+     * @return the encrypted data, or null
+     * @throws StreamCorruptedException if the data is not valid
+     */
+    private static EncryptedData readEncrypted(ByteBuffer in) throws StreamCorruptedException {
+        byte[] data = readBytes(in);
+        return data == null ? null : new EncryptedData(data, readBytes(in));
+    }
+
+    /**
+     * Writes a string as its UTF-8 bytes.
+     * 
+     * @param out    the stream to write to
+     * @param string the string, or null
+     * @throws IOException if it fails to write
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string == null ? null : string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a string.
+     * 
+     * @param in the payload
+     * @return the string, or null
+     * @throws StreamCorruptedException if the string is not valid
+     */
+    private static String readString(ByteBuffer in) throws StreamCorruptedException {
+        byte[] bytes = readBytes(in);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a byte array prefixed by its length.
+     * 
+     * @param out   the stream to write to
+     * @param bytes the byte array, or null
+     * @throws IOException if it fails to write
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a byte array prefixed by its length, checking the length before the
+     * array is allocated.
+     * 
+     * @param in the payload
+     * @return the byte array, or null
+     * @throws StreamCorruptedException if the length is not valid
+     */
+    private static byte[] readBytes(ByteBuffer in) throws StreamCorruptedException {
+        int length = in.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > in.remaining())
+            throw new StreamCorruptedException("Invalid length " + length + "!");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads the number of elements of a collection, checking it against the
+     * smallest size of its elements before the collection is allocated.
+     * 
+     * @param in           the payload
+     * @param elementBytes the smallest size of an element
+     * @return the number of elements
+     * @throws StreamCorruptedException if the number is not valid
+     */
+    private static int readCount(ByteBuffer in, int elementBytes) throws StreamCorruptedException {
+        int count = in.getInt();
+        if (count < 0 || (long) count * elementBytes > in.remaining())
+            throw new StreamCorruptedException("Invalid count " + count + "!");
+        return count;
+    }
+}
@@ -9,7 +9,7 @@ import common.messages.types.request.ErrorMessageData;
  * @author 58199 Daniela Camarinha
  * 
  *         Class that contains default messages already created for OK, NOK,
- *         DATA_TYPE_ERROR and SESSION_INFO_ERROR.
+ *         DATA_TYPE_ERROR, SESSION_INFO_ERROR and THROTTLED.
  */
 public class DefaultMessages {
 
@@ -23,4 +23,6 @@ public class DefaultMessages {
     public static Message SESSION_INFO_ERROR_MESSAGE = new Message(OpCode.ERROR,
             new ErrorMessageData("Invalid stage on session!"));
 
+    public static Message THROTTLED_MESSAGE = new Message(OpCode.THROTTLED);
+
 }
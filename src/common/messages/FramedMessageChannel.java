@@ -0,0 +1,101 @@
+package common.messages;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message channel that sends each message in a
+ *         length-prefixed frame, as described in {@link MessageFraming}.
+ *         Once a binary frame is received, the channel answers in binary too,
+ *         so the peer that starts the connection picks the codec.
+ *         A large payload is read in chunks that grow with the bytes received,
+ *         so a peer that only sends a frame header can't make the channel
+ *         allocate the whole frame.
+ */
+public class FramedMessageChannel implements MessageChannel {
+
+    private final OutputStream out;
+    private final DataInputStream in;
+    private volatile int maxFrameBytes;
+    private volatile boolean binary;
+
+    /**
+     * Constructor of the class, that sends serialized messages until a binary
+     * frame is received.
+     * 
+     * @param output        the stream to write the frames to
+     * @param input         the stream to read the frames from
+     * @param maxFrameBytes the maximum size of a received frame payload
+     */
+    public FramedMessageChannel(OutputStream output, InputStream input, int maxFrameBytes) {
+        this(output, input, maxFrameBytes, false);
+    }
+
+    /**
+     * Constructor of the class.
+     * 
+     * @param output        the stream to write the frames to
+     * @param input         the stream to read the frames from
+     * @param maxFrameBytes the maximum size of a received frame payload
+     * @param binary        true to send the messages with {@link BinaryCodec},
+     *                      false to serialize them
+     */
+    public FramedMessageChannel(OutputStream output, InputStream input, int maxFrameBytes, boolean binary) {
+        this.out = new BufferedOutputStream(output, BUFFER_BYTES);
+        this.in = new DataInputStream(input);
+        this.maxFrameBytes = maxFrameBytes;
+        this.binary = binary;
+    }
+
+    @Override
+    public Message readMessage() throws IOException, ClassNotFoundException {
+        int length = this.in.readInt();
+        MessageFraming.checkFrameLength(length, this.maxFrameBytes);
+        byte[] payload = readPayload(length);
+        if (BinaryCodec.isBinary(payload))
+            this.binary = true;
+        return MessageFraming.decodePayload(payload);
+    }
+
+    /**
+     * Reads the payload of a frame, doubling the buffer only as its bytes
+     * arrive.
+     * 
+     * @param length the length of the payload
+     * @return the payload
+     * @throws IOException if an I/O error occurs when reading the payload
+     */
+    private byte[] readPayload(int length) throws IOException {
+        byte[] payload = new byte[Math.min(length, BUFFER_BYTES)];
+        this.in.readFully(payload);
+        while (payload.length < length) {
+            int read = payload.length;
+            payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * read));
+            this.in.readFully(payload, read, payload.length - read);
+        }
+        return payload;
+    }
+
+    @Override
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    @Override
+    public void bufferMessage(Message message) throws IOException {
+        this.out.write(MessageFraming.encodeFrame(message, this.binary));
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+}
@@ -12,11 +12,20 @@ import common.OpCode;
  *         Class that represents a message.
  *         Implements Serializable interface to allow the object to be
  *         serialized and deserialized.
+ *         A request with a correlation id other than 0 may be answered out of
+ *         order, and its response carries the same id.
+ *         The channel id selects one of the logical devices multiplexed over
+ *         the connection of a gateway, 0 being the device that logged in.
  */
 public class Message implements Serializable {
 
+    // kept from the version without correlation ids, so both can talk
+    private static final long serialVersionUID = -2558605493536518591L;
+
     private final OpCode opCode;
     private final MessageData data;
+    private final int correlationId;
+    private final int channelId;
 
     /**
      * Constructor of the class
@@ -34,8 +43,36 @@ public class Message implements Serializable {
      * @param data   the data of the message
      */
     public Message(OpCode opCode, MessageData data) {
+        this(opCode, data, 0);
+    }
+
+    /**
+     * Constructor of the class
+     * 
+     * @param opCode        the operation code of the message
+     * @param data          the data of the message
+     * @param correlationId the id that matches a request with its response, or 0
+     *                      for in order requests
+     */
+    public Message(OpCode opCode, MessageData data, int correlationId) {
+        this(opCode, data, correlationId, 0);
+    }
+
+    /**
+     * Constructor of the class
+     * 
+     * @param opCode        the operation code of the message
+     * @param data          the data of the message
+     * @param correlationId the id that matches a request with its response, or 0
+     *                      for in order requests
+     * @param channelId     the id of the logical device of the message, or 0 for
+     *                      the device of the connection
+     */
+    public Message(OpCode opCode, MessageData data, int correlationId, int channelId) {
         this.opCode = opCode;
         this.data = data;
+        this.correlationId = correlationId;
+        this.channelId = channelId;
     }
 
     /**
@@ -55,4 +92,43 @@ public class Message implements Serializable {
     public MessageData getData() {
         return data;
     }
+
+    /**
+     * Gets the correlation id of the message
+     * 
+     * @return the correlation id of the message, or 0 if it has none
+     */
+    public int getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * Gets the channel id of the message
+     * 
+     * @return the channel id of the message, or 0 for the device of the
+     *         connection
+     */
+    public int getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * Creates a copy of the message with another correlation id
+     * 
+     * @param correlationId the correlation id of the copy
+     * @return the copy of the message
+     */
+    public Message withCorrelationId(int correlationId) {
+        return new Message(this.opCode, this.data, correlationId, this.channelId);
+    }
+
+    /**
+     * Creates a copy of the message with another channel id
+     * 
+     * @param channelId the channel id of the copy
+     * @return the copy of the message
+     */
+    public Message withChannelId(int channelId) {
+        return new Message(this.opCode, this.data, this.correlationId, channelId);
+    }
 }
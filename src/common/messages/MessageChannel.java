@@ -0,0 +1,65 @@
+package common.messages;
+
+import java.io.IOException;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         An interface that represents a bidirectional channel of messages over
+ *         a connection.
+ *         The messages are written to a buffer the size of a TLS record, so a
+ *         message, or several written before a flush, leave in as few records
+ *         and system calls as possible.
+ */
+public interface MessageChannel {
+
+    int BUFFER_BYTES = 16 * 1024;
+
+    /**
+     * Reads the next message from the channel, blocking until it arrives.
+     * 
+     * @return the received message
+     * @throws IOException            if an I/O error occurs when reading the
+     *                                message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     *                                be found
+     */
+    Message readMessage() throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes a message to the buffer of the channel, without sending it.
+     * 
+     * @param message the message to be sent
+     * @throws IOException if an I/O error occurs when writing the message
+     */
+    void bufferMessage(Message message) throws IOException;
+
+    /**
+     * Sends the buffered messages.
+     * 
+     * @throws IOException if an I/O error occurs when sending the messages
+     */
+    void flush() throws IOException;
+
+    /**
+     * Sets the maximum size of a received message. Channels without a limit of
+     * their own ignore it.
+     * 
+     * @param maxFrameBytes the maximum size of a received frame payload
+     */
+    default void setMaxFrameBytes(int maxFrameBytes) {
+    }
+
+    /**
+     * Writes a message to the channel and flushes it.
+     * 
+     * @param message the message to be sent
+     * @throws IOException if an I/O error occurs when writing the message
+     */
+    default void writeMessage(Message message) throws IOException {
+        bufferMessage(message);
+        flush();
+    }
+}
@@ -0,0 +1,121 @@
+package common.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class with the methods to encode and decode framed messages. A frame
+ *         is a 4 byte big-endian payload length followed by the payload, which
+ *         is either the message serialized on its own object stream or the
+ *         message encoded by {@link BinaryCodec}. The first byte of the payload
+ *         tells them apart, so each peer may pick its own codec.
+ */
+public final class MessageFraming {
+
+    public static final int HEADER_BYTES = Integer.BYTES;
+    public static final int DEFAULT_MAX_FRAME_BYTES = 32 * 1024 * 1024;
+    public static final int LOGIN_MAX_FRAME_BYTES = 64 * 1024;
+
+    /**
+     * Constructor of the class
+     */
+    private MessageFraming() {
+        throw new UnsupportedOperationException("Cannot create instance of " + getClass().getName());
+    }
+
+    /**
+     * Encodes a message into a frame with Java serialization, including its
+     * header.
+     * 
+     * @param message the message to encode
+     * @return the bytes of the frame
+     * @throws IOException if the message can't be serialized
+     */
+    public static byte[] encodeFrame(Message message) throws IOException {
+        return encodeFrame(message, false);
+    }
+
+    /**
+     * Encodes a message into a frame, including its header.
+     * 
+     * @param message the message to encode
+     * @param binary  true to encode the message with {@link BinaryCodec}, false
+     *                to serialize it
+     * @return the bytes of the frame
+     * @throws IOException if the message can't be encoded
+     */
+    public static byte[] encodeFrame(Message message, boolean binary) throws IOException {
+        byte[] frame;
+        if (binary) {
+            frame = BinaryCodec.encode(message, HEADER_BYTES);
+        } else {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            baos.write(new byte[HEADER_BYTES]);
+            try (ObjectOutputStream out = new ObjectOutputStream(baos)) {
+                out.writeObject(message);
+            }
+            frame = baos.toByteArray();
+        }
+        int length = frame.length - HEADER_BYTES;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * Decodes the payload of a frame into a message. A serialized payload is
+     * checked by a {@link MessageInputFilter}.
+     * 
+     * @param payload the payload of the frame, without the header
+     * @return the decoded message
+     * @throws IOException            if the payload is not a valid message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     *                                be found
+     */
+    public static Message decodePayload(byte[] payload) throws IOException, ClassNotFoundException {
+        if (BinaryCodec.isBinary(payload))
+            return BinaryCodec.decode(payload);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            in.setObjectInputFilter(new MessageInputFilter());
+            Object object = in.readObject();
+            if (!(object instanceof Message))
+                throw new StreamCorruptedException("Frame doesn't contain a message!");
+            return (Message) object;
+        }
+    }
+
+    /**
+     * Checks if the length of a received frame is acceptable, before its payload
+     * is allocated.
+     * 
+     * @param length        the length read from the frame header
+     * @param maxFrameBytes the maximum accepted length
+     * @throws StreamCorruptedException if the length is not acceptable
+     */
+    public static void checkFrameLength(int length, int maxFrameBytes) throws StreamCorruptedException {
+        if (length <= 0 || length > maxFrameBytes)
+            throw new StreamCorruptedException("Invalid frame length " + length + "!");
+    }
+
+    /**
+     * Checks if the first two bytes sent by a peer are the header of an object
+     * stream, meaning the peer doesn't use frames.
+     * 
+     * @param first  the first byte sent by the peer
+     * @param second the second byte sent by the peer
+     * @return true if the bytes start an object stream, false otherwise
+     */
+    public static boolean isObjectStreamHeader(int first, int second) {
+        return first == 0xAC && second == 0xED;
+    }
+}
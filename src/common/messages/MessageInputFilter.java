@@ -0,0 +1,165 @@
+package common.messages;
+
+import java.io.ObjectInputFilter;
+import java.security.cert.Certificate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.messages.types.request.EIMessageData;
+import common.messages.types.request.ETBatchMessageData;
+import common.messages.types.request.ETMessageData;
+import common.messages.types.response.DomainKeysResponseData;
+import common.messages.types.response.MDResponseMessageData;
+import common.messages.types.response.RIResponseData;
+import common.messages.types.response.RTResponseData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents the filter of the object streams messages are
+ *         read from. It only lets through the classes of the messages and
+ *         their data, and bounds the bytes, the array lengths and the depth of
+ *         each message, so a peer can't make the reader allocate more than a
+ *         message of its type needs.
+ *         The opcode of a message is only read after its data, so the budget
+ *         is picked by the class of the data instead, which starts small and
+ *         grows when a bigger data class is read. On a long-lived object stream
+ *         a data class read before is only sent as a back-reference, in which
+ *         case the message gets the biggest budget of the data classes the
+ *         stream read since it was last reset.
+ */
+public class MessageInputFilter implements ObjectInputFilter {
+
+    private static final AtomicLong REJECTED = new AtomicLong();
+
+    private static final String[] ALLOWED_PACKAGES = { "common.messages.", "common.data." };
+    private static final Set<String> ALLOWED_CLASSES = Set.of("common.OpCode", "java.lang.Enum",
+            "java.util.ArrayList", "java.util.HashMap", "java.util.CollSer", "java.util.ImmutableCollections$List12",
+            "java.util.ImmutableCollections$ListN", "java.util.Map$Entry", "java.lang.Object",
+            "java.security.SignedObject", "java.security.cert.Certificate$CertificateRep");
+
+    private static final Budget DEFAULT_BUDGET = new Budget(64 * 1024, 8);
+    private static final Budget LIST_BUDGET = new Budget(1024 * 1024, 8);
+    private static final Budget TEMPERATURES_BUDGET = new Budget(4 * 1024 * 1024, 8);
+    private static final Budget IMAGE_BUDGET = new Budget(MessageFraming.DEFAULT_MAX_FRAME_BYTES, 8);
+    private static final Map<Class<?>, Budget> DATA_BUDGETS = Map.of(
+            ETMessageData.class, LIST_BUDGET,
+            DomainKeysResponseData.class, LIST_BUDGET,
+            MDResponseMessageData.class, LIST_BUDGET,
+            RTResponseData.class, TEMPERATURES_BUDGET,
+            ETBatchMessageData.class, TEMPERATURES_BUDGET,
+            EIMessageData.class, IMAGE_BUDGET,
+            RIResponseData.class, IMAGE_BUDGET);
+
+    private Budget messageBudget = DEFAULT_BUDGET;
+    private Budget streamBudget = DEFAULT_BUDGET;
+    private long messageStart = -1;
+
+    /**
+     * Class that represents the limits of a message. An array may have at most
+     * as many elements as the message has bytes.
+     */
+    private static class Budget {
+
+        private final long maxBytes;
+        private final long maxDepth;
+
+        /**
+         * Constructor of the class
+         * 
+         * @param maxBytes the maximum bytes of the message
+         * @param maxDepth the maximum depth of its object graph
+         */
+        private Budget(long maxBytes, long maxDepth) {
+            this.maxBytes = maxBytes;
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * Gets the bigger of two budgets
+         * 
+         * @param other the other budget
+         * @return the budget with more bytes
+         */
+        private Budget max(Budget other) {
+            return other.maxBytes > this.maxBytes ? other : this;
+        }
+    }
+
+    /**
+     * Starts the budget of the next message read from the stream. Must be
+     * called before each message is read.
+     */
+    public void startMessage() {
+        this.messageBudget = DEFAULT_BUDGET;
+        this.messageStart = -1;
+    }
+
+    @Override
+    public Status checkInput(FilterInfo info) {
+        if (this.messageStart < 0)
+            this.messageStart = info.streamBytes();
+        Class<?> serialClass = info.serialClass();
+        if (serialClass == null) {
+            this.messageBudget = this.messageBudget.max(this.streamBudget);
+        } else {
+            Class<?> type = serialClass;
+            while (type.isArray())
+                type = type.getComponentType();
+            if (!type.isPrimitive() && !isAllowed(type))
+                return reject();
+            // the message class is only sent again after a reset of the stream,
+            // which also drops the data classes read before
+            if (serialClass == Message.class)
+                this.streamBudget = DEFAULT_BUDGET;
+            Budget dataBudget = DATA_BUDGETS.get(serialClass);
+            if (dataBudget != null) {
+                this.messageBudget = this.messageBudget.max(dataBudget);
+                this.streamBudget = this.streamBudget.max(dataBudget);
+            }
+        }
+        if (info.depth() > this.messageBudget.maxDepth
+                || info.arrayLength() > this.messageBudget.maxBytes
+                || info.streamBytes() - this.messageStart > this.messageBudget.maxBytes)
+            return reject();
+        return Status.UNDECIDED;
+    }
+
+    /**
+     * Checks if a class may be read from the stream
+     * 
+     * @param type the class, or the component class of an array
+     * @return true if the class is allowed, false otherwise
+     */
+    private static boolean isAllowed(Class<?> type) {
+        String name = type.getName();
+        for (String prefix : ALLOWED_PACKAGES)
+            if (name.startsWith(prefix))
+                return true;
+        // a certificate is sent as a replacement, which the stream resolves to
+        // the class of the certificate
+        return ALLOWED_CLASSES.contains(name) || Certificate.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Counts a rejected message
+     * 
+     * @return the status that rejects the message
+     */
+    private static Status reject() {
+        REJECTED.incrementAndGet();
+        return Status.REJECTED;
+    }
+
+    /**
+     * Gets the number of messages rejected by all the filters
+     * 
+     * @return the number of rejected messages
+     */
+    public static long getTotalRejected() {
+        return REJECTED.get();
+    }
+}
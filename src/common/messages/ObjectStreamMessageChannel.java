@@ -0,0 +1,171 @@
+package common.messages;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message channel that sends the messages over
+ *         a single pair of long-lived object streams.
+ *         An object stream keeps every object it writes, and the peer every
+ *         object it reads, so they can be sent again as back-references. The
+ *         channel resets its output stream after a number of messages or bytes,
+ *         which clears those tables on both ends.
+ *         The messages read are checked by a {@link MessageInputFilter}.
+ */
+public class ObjectStreamMessageChannel implements MessageChannel {
+
+    public static final int DEFAULT_RESET_MESSAGES = 64;
+    public static final long DEFAULT_RESET_BYTES = 1024 * 1024;
+
+    private static final Set<ObjectStreamMessageChannel> CHANNELS = Collections
+            .synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private static final AtomicLong RESETS = new AtomicLong();
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    private final MessageInputFilter filter = new MessageInputFilter();
+    private final CountingOutputStream counter;
+    private final int resetMessages;
+    private final long resetBytes;
+
+    private int messagesSinceReset = 0;
+    private volatile long bytesSinceReset = 0;
+
+    /**
+     * Class that represents an output stream that counts the bytes written to
+     * it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        /**
+         * Constructor of the class
+         * 
+         * @param out the stream to write to
+         */
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+
+    /**
+     * Constructor of the class, with the default reset policy.
+     * 
+     * @param output the stream to write the messages to
+     * @param input  the stream to read the messages from
+     * @throws IOException if an I/O error occurs when creating the object streams
+     */
+    public ObjectStreamMessageChannel(OutputStream output, InputStream input) throws IOException {
+        this(output, input, DEFAULT_RESET_MESSAGES, DEFAULT_RESET_BYTES);
+    }
+
+    /**
+     * Constructor of the class. The output stream is created and its header sent
+     * first, so both ends can build their channels without waiting for each
+     * other.
+     * 
+     * @param output        the stream to write the messages to
+     * @param input         the stream to read the messages from
+     * @param resetMessages the number of messages after which the output stream
+     *                      is reset, or 0 for no limit
+     * @param resetBytes    the number of bytes after which the output stream is
+     *                      reset, or 0 for no limit
+     * @throws IOException if an I/O error occurs when creating the object streams
+     */
+    public ObjectStreamMessageChannel(OutputStream output, InputStream input, int resetMessages, long resetBytes)
+            throws IOException {
+        this.counter = new CountingOutputStream(new BufferedOutputStream(output, BUFFER_BYTES));
+        this.out = new ObjectOutputStream(this.counter);
+        this.out.flush();
+        this.in = new ObjectInputStream(input);
+        this.in.setObjectInputFilter(this.filter);
+        this.resetMessages = resetMessages > 0 ? resetMessages : Integer.MAX_VALUE;
+        this.resetBytes = resetBytes > 0 ? resetBytes : Long.MAX_VALUE;
+        CHANNELS.add(this);
+    }
+
+    @Override
+    public Message readMessage() throws IOException, ClassNotFoundException {
+        this.filter.startMessage();
+        return (Message) this.in.readObject();
+    }
+
+    @Override
+    public void bufferMessage(Message message) throws IOException {
+        long before = this.counter.count;
+        this.out.writeObject(message);
+        this.messagesSinceReset++;
+        long written = this.bytesSinceReset + this.counter.count - before;
+        if (this.messagesSinceReset >= this.resetMessages || written >= this.resetBytes) {
+            this.out.reset();
+            this.messagesSinceReset = 0;
+            written = 0;
+            RESETS.incrementAndGet();
+        }
+        this.bytesSinceReset = written;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.out.flush();
+    }
+
+    /**
+     * Gets the bytes written since the last reset, which bounds the objects kept
+     * by the output stream of this end and the input stream of the peer.
+     * 
+     * @return the bytes written since the last reset
+     */
+    public long getRetainedBytes() {
+        return this.bytesSinceReset;
+    }
+
+    /**
+     * Gets the bytes written since the last reset by all the open channels.
+     * 
+     * @return the bytes written since the last reset by all the channels
+     */
+    public static long getTotalRetainedBytes() {
+        synchronized (CHANNELS) {
+            long total = 0;
+            for (ObjectStreamMessageChannel channel : CHANNELS)
+                total += channel.getRetainedBytes();
+            return total;
+        }
+    }
+
+    /**
+     * Gets the number of resets done by all the channels.
+     * 
+     * @return the number of resets
+     */
+    public static long getTotalResets() {
+        return RESETS.get();
+    }
+}
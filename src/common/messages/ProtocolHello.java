@@ -0,0 +1,166 @@
+package common.messages;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents the hello exchanged before any message, in which
+ *         the device offers its protocol version and the features it supports
+ *         and the server answers with the version and the features both will
+ *         use. A hello is the ASCII bytes {@code IOTP}, a one byte version and
+ *         a 4 byte big-endian set of feature bits.
+ *         Devices that send no hello are legacy devices, with version 0 and the
+ *         features implied by the first bytes they send.
+ */
+public final class ProtocolHello {
+
+    public static final int VERSION = 1;
+    public static final int HELLO_BYTES = 9;
+
+    public static final int FEATURE_FRAMES = 1;
+    public static final int FEATURE_BINARY_CODEC = 1 << 1;
+    public static final int FEATURE_ET_BATCH = 1 << 2;
+    public static final int FEATURE_RESUME = 1 << 3;
+    public static final int SUPPORTED_FEATURES = FEATURE_FRAMES | FEATURE_BINARY_CODEC | FEATURE_ET_BATCH
+            | FEATURE_RESUME;
+
+    private static final byte[] MAGIC = { 'I', 'O', 'T', 'P' };
+
+    private final int version;
+    private final int features;
+
+    /**
+     * Constructor of the class
+     * 
+     * @param version  the protocol version
+     * @param features the feature bits
+     */
+    public ProtocolHello(int version, int features) {
+        this.version = version;
+        this.features = features;
+    }
+
+    /**
+     * Creates the protocol of a legacy device, which sent no hello.
+     * 
+     * @param features the features implied by the first bytes of the device
+     * @return the protocol of the device
+     */
+    public static ProtocolHello legacy(int features) {
+        return new ProtocolHello(0, features);
+    }
+
+    /**
+     * Gets the protocol version
+     * 
+     * @return the protocol version, or 0 for a legacy device
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the feature bits
+     * 
+     * @return the feature bits
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * Checks if a feature is in this hello
+     * 
+     * @param feature the bit of the feature
+     * @return true if the feature is in this hello, false otherwise
+     */
+    public boolean hasFeature(int feature) {
+        return (this.features & feature) != 0;
+    }
+
+    /**
+     * Answers the hello of a device, with the lowest of both versions and the
+     * features both support.
+     * 
+     * @param supportedFeatures the features supported by this end
+     * @return the hello with the agreed version and features
+     */
+    public ProtocolHello negotiate(int supportedFeatures) {
+        return new ProtocolHello(Math.min(this.version, VERSION), this.features & supportedFeatures);
+    }
+
+    /**
+     * Encodes this hello
+     * 
+     * @return the bytes of the hello
+     */
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(HELLO_BYTES).put(MAGIC).put((byte) this.version).putInt(this.features).array();
+    }
+
+    /**
+     * Writes this hello to a stream, and flushes it
+     * 
+     * @param out the stream to write to
+     * @throws IOException if it fails to write
+     */
+    public void write(OutputStream out) throws IOException {
+        out.write(toBytes());
+        out.flush();
+    }
+
+    /**
+     * Reads a hello from a stream
+     * 
+     * @param in the stream to read from
+     * @return the read hello
+     * @throws IOException if it fails to read or the bytes are not a hello
+     */
+    public static ProtocolHello read(InputStream in) throws IOException {
+        byte[] bytes = new byte[HELLO_BYTES];
+        new DataInputStream(in).readFully(bytes);
+        return fromBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a hello from a buffer, advancing its position
+     * 
+     * @param buffer the buffer with at least {@link #HELLO_BYTES} remaining
+     * @return the decoded hello
+     * @throws StreamCorruptedException if the bytes are not a hello
+     */
+    public static ProtocolHello fromBytes(ByteBuffer buffer) throws StreamCorruptedException {
+        for (byte b : MAGIC)
+            if (buffer.get() != b)
+                throw new StreamCorruptedException("Peer didn't send a protocol hello!");
+        int version = buffer.get() & 0xFF;
+        if (version == 0)
+            throw new StreamCorruptedException("Invalid protocol version 0!");
+        return new ProtocolHello(version, buffer.getInt());
+    }
+
+    /**
+     * Checks if the first two bytes sent by a peer start a hello. A frame can't
+     * start with them, since its length would be above 1 GiB.
+     * 
+     * @param first  the first byte sent by the peer
+     * @param second the second byte sent by the peer
+     * @return true if the bytes start a hello, false otherwise
+     */
+    public static boolean isHelloStart(int first, int second) {
+        return first == MAGIC[0] && second == MAGIC[1];
+    }
+
+    @Override
+    public String toString() {
+        return "v" + this.version + " features=0x" + Integer.toHexString(this.features);
+    }
+}
@@ -0,0 +1,42 @@
+package common.messages.types.request;
+
+import java.util.List;
+import java.util.Map;
+
+import common.data.TemperatureReading;
+import common.messages.MessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message that contains several timestamped
+ *         temperatures to send at once.
+ */
+public class ETBatchMessageData implements MessageData {
+
+    private final Map<String, List<TemperatureReading>> domainsReadings;
+
+    /**
+     * Constructor of the class.
+     * 
+     * @param domainsReadings Map with the temperatures to send, where the key is
+     *                        the domain's name where the temperatures will be
+     *                        stored and the value is the list of readings,
+     *                        oldest first.
+     */
+    public ETBatchMessageData(Map<String, List<TemperatureReading>> domainsReadings) {
+        this.domainsReadings = domainsReadings;
+    }
+
+    /**
+     * Gets the temperatures to send.
+     * 
+     * @return Map with the temperatures to send, where the key is the domain's
+     *         name and the value is the list of readings, oldest first.
+     */
+    public Map<String, List<TemperatureReading>> getDomainsReadings() {
+        return this.domainsReadings;
+    }
+}
@@ -0,0 +1,34 @@
+package common.messages.types.request;
+
+import common.messages.MessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message that contains the resumption ticket
+ *         a device sends to reconnect without a full login.
+ */
+public class ResumeRequestData implements MessageData {
+
+    private final byte[] ticket;
+
+    /**
+     * Constructor of the class
+     * 
+     * @param ticket the resumption ticket given by the server
+     */
+    public ResumeRequestData(byte[] ticket) {
+        this.ticket = ticket;
+    }
+
+    /**
+     * Gets the resumption ticket
+     * 
+     * @return the resumption ticket
+     */
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+}
@@ -0,0 +1,35 @@
+package common.messages.types.response;
+
+import common.messages.MessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message that contains the parameters of the
+ *         response sent when the server is too busy to serve a device.
+ */
+public class BusyResponseData implements MessageData {
+
+    private final long retryAfterMillis;
+
+    /**
+     * Constructor of the class
+     * 
+     * @param retryAfterMillis the time the device should wait before retrying, in
+     *                         milliseconds
+     */
+    public BusyResponseData(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Gets the time the device should wait before retrying
+     * 
+     * @return the time to wait before retrying, in milliseconds
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,46 @@
+package common.messages.types.response;
+
+import common.messages.MessageData;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents a message that contains a resumption ticket,
+ *         given by the server when a device completes its login or resumes it.
+ */
+public class ResumptionTicketData implements MessageData {
+
+    private final byte[] ticket;
+    private final long validMillis;
+
+    /**
+     * Constructor of the class
+     * 
+     * @param ticket      the resumption ticket
+     * @param validMillis how long the ticket may be used
+     */
+    public ResumptionTicketData(byte[] ticket, long validMillis) {
+        this.ticket = ticket;
+        this.validMillis = validMillis;
+    }
+
+    /**
+     * Gets the resumption ticket
+     * 
+     * @return the resumption ticket
+     */
+    public byte[] getTicket() {
+        return this.ticket;
+    }
+
+    /**
+     * Gets how long the ticket may be used
+     * 
+     * @return the lifetime of the ticket, in milliseconds
+     */
+    public long getValidMillis() {
+        return this.validMillis;
+    }
+}
@@ -49,6 +49,7 @@ public class IoTDevice {
     private static String userId;
     private static int deviceId;
     private static KeyStore trustStore;
+    private static boolean batching;
 
     public static void main(String[] args) {
         try {
@@ -61,10 +62,19 @@ public class IoTDevice {
 
             Socket clientSocket = createClientSocket(commandLineArgs);
             ioTDevStub = new IoTDeviceStub(clientSocket, commandLineArgs, keyStore, trustStore);
+            long heartbeat = commandLineArgs.getIntOption("heartbeat", 60);
+            if (heartbeat > 0)
+                ioTDevStub.startHeartbeat(heartbeat);
+            int batchSize = commandLineArgs.getIntOption("batch-size", 1);
+            batching = batchSize > 1;
+            if (batching)
+                ioTDevStub.startTemperatureBatching(batchSize, commandLineArgs.getIntOption("batch-millis", 1000));
 
-            ioTDevStub.keyAuthentication(userId);
-            ioTDevStub.FA2Authentication(getCfaCode());
-            ioTDevStub.remoteAttestation(deviceId, getBytesJarFile());
+            if (!ioTDevStub.resume()) {
+                ioTDevStub.keyAuthentication(userId);
+                ioTDevStub.FA2Authentication(getCfaCode());
+                ioTDevStub.remoteAttestation(deviceId, getBytesJarFile());
+            }
 
             while (true) {
                 String command = menuOptions();
@@ -309,6 +319,13 @@ public class IoTDevice {
             String tempString = cmd[1];
             try {
                 float temp = Float.parseFloat(tempString);
+                if (batching) {
+                    if (ioTDevStub.recordTemperature(temp))
+                        System.out.println("The temperature " + temp + " was queued to be sent to server!");
+                    else
+                        System.out.println("The temperature can't be sent to server!");
+                    return;
+                }
                 boolean wasSent = ioTDevStub.sendTemperature(temp);
                 if (wasSent)
                     System.out.println("The temperature " + temp + " was sent to server!");
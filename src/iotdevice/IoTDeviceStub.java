@@ -1,12 +1,21 @@
 package iotdevice;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -20,23 +29,43 @@ import java.security.SignatureException;
 import java.security.SignedObject;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
 
 import common.OpCode;
 import common.Utils;
 import common.data.EncryptedData;
+import common.data.GcmRecord;
+import common.data.TemperatureReading;
+import common.messages.FramedMessageChannel;
 import common.messages.Message;
+import common.messages.MessageChannel;
+import common.messages.MessageFraming;
+import common.messages.ObjectStreamMessageChannel;
+import common.messages.ProtocolHello;
 import common.messages.types.request.*;
 import common.messages.types.response.*;
 import iotdevice.utils.CommandLineArgs;
 import iotdevice.utils.Pair;
+import iotdevice.utils.TemperatureCodec;
 
 /**
  * @author 58180 Rodrigo Correia
@@ -45,14 +74,36 @@ import iotdevice.utils.Pair;
  * 
  *         This class is responsible for the communication between
  *         client-server, abstracting the answer/response codes.
+ *         Each request carries a correlation id, so several requests can be
+ *         in flight at the same time and a reader thread hands each response
+ *         to its request.
+ *         A gateway opens a stub per logical device with
+ *         {@link #openChannel(int)}, all sharing the same connection.
  */
 public class IoTDeviceStub {
 
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    private static final int THROTTLED_RETRIES = 4;
+    private static final long THROTTLED_BACKOFF_MILLIS = 100;
+
+    private final MessageChannel channel;
     private final CommandLineArgs commandLineArgs;
     private final KeyStore keyStore;
     private final KeyStore trustStore;
+    private final IoTDeviceStub connection;
+    private final int channelId;
+    private final ProtocolHello protocol;
+    private final List<Pair<Long, Float>> pendingReadings = new ArrayList<>();
+    private final Map<String, Pair<Key, SecretKey>> recordKeys = new ConcurrentHashMap<>();
+
+    private final Map<Integer, CompletableFuture<Message>> pendingRequests;
+    private final AtomicInteger nextCorrelationId;
+
+    private volatile long lastActivity = System.nanoTime();
+    private volatile Exception readFailure;
+    private volatile boolean authenticated;
+    private volatile Map<String, byte[]> cachedWrappedKeys;
+    private volatile Map<String, Key> cachedDomainKeys;
+    private volatile int batchSize = 1;
 
     /**
      * Constructor of the class
@@ -66,11 +117,134 @@ public class IoTDeviceStub {
      */
     public IoTDeviceStub(Socket sck, CommandLineArgs commandLineArgs, KeyStore keyStore, KeyStore trustStore)
             throws IOException {
-        this.out = new ObjectOutputStream(sck.getOutputStream());
-        this.in = new ObjectInputStream(sck.getInputStream());
+        InputStream input = new BufferedInputStream(sck.getInputStream());
+        this.protocol = negotiate(sck, input, commandLineArgs);
+        if (this.protocol.hasFeature(ProtocolHello.FEATURE_FRAMES))
+            this.channel = new FramedMessageChannel(sck.getOutputStream(), input,
+                    MessageFraming.DEFAULT_MAX_FRAME_BYTES,
+                    this.protocol.hasFeature(ProtocolHello.FEATURE_BINARY_CODEC));
+        else
+            this.channel = new ObjectStreamMessageChannel(sck.getOutputStream(), input,
+                    commandLineArgs.getIntOption("stream-reset-messages",
+                            ObjectStreamMessageChannel.DEFAULT_RESET_MESSAGES),
+                    commandLineArgs.getLongOption("stream-reset-bytes",
+                            ObjectStreamMessageChannel.DEFAULT_RESET_BYTES));
         this.commandLineArgs = commandLineArgs;
         this.keyStore = keyStore;
         this.trustStore = trustStore;
+        this.connection = this;
+        this.channelId = 0;
+        this.pendingRequests = new LinkedHashMap<>();
+        this.nextCorrelationId = new AtomicInteger();
+        Thread reader = new Thread(this::readResponses, "server-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Agrees on the protocol with the server. The device offers the features
+     * allowed by {@code --transport} and {@code --codec} and uses the ones the
+     * server answers with. With {@code --negotiate=false} it sends no hello, as
+     * older servers expect, and uses the features of the options as they are.
+     * 
+     * @param sck             the socket to communicate with the server
+     * @param input           the buffered input stream of the socket
+     * @param commandLineArgs the command line arguments
+     * @return the protocol to use
+     * @throws IOException if it fails to send or read the hello
+     */
+    private static ProtocolHello negotiate(Socket sck, InputStream input, CommandLineArgs commandLineArgs)
+            throws IOException {
+        if (!commandLineArgs.getBooleanOption("negotiate", true)) {
+            // the binary codec needs frames, object streams carry only serialized messages
+            boolean binary = commandLineArgs.getOption("codec", "java").equals("binary");
+            boolean framed = binary || commandLineArgs.getOption("transport", "stream").equals("framed");
+            return ProtocolHello.legacy((framed ? ProtocolHello.FEATURE_FRAMES : 0)
+                    | (binary ? ProtocolHello.FEATURE_BINARY_CODEC : 0));
+        }
+        int features = ProtocolHello.SUPPORTED_FEATURES;
+        // tickets are only kept with a file to keep them in
+        if (commandLineArgs.getOption("resume-ticket", null) == null)
+            features &= ~ProtocolHello.FEATURE_RESUME;
+        if (commandLineArgs.getOption("transport", "framed").equals("stream"))
+            features &= ~(ProtocolHello.FEATURE_FRAMES | ProtocolHello.FEATURE_BINARY_CODEC);
+        else if (commandLineArgs.getOption("codec", "binary").equals("java"))
+            features &= ~ProtocolHello.FEATURE_BINARY_CODEC;
+        new ProtocolHello(ProtocolHello.VERSION, features).write(sck.getOutputStream());
+        return ProtocolHello.read(input);
+    }
+
+    /**
+     * Constructor of the class, for a logical device on the connection of a
+     * gateway
+     * 
+     * @param connection the stub of the device that logged in
+     * @param channelId  the id of the channel of the logical device
+     */
+    private IoTDeviceStub(IoTDeviceStub connection, int channelId) {
+        this.channel = connection.channel;
+        this.commandLineArgs = connection.commandLineArgs;
+        this.keyStore = connection.keyStore;
+        this.trustStore = connection.trustStore;
+        this.connection = connection;
+        this.channelId = channelId;
+        this.protocol = connection.protocol;
+        this.pendingRequests = connection.pendingRequests;
+        this.nextCorrelationId = connection.nextCorrelationId;
+    }
+
+    /**
+     * Opens a channel for another logical device on this connection, once the
+     * user is authenticated. The device of the channel still has to do its
+     * remote attestation.
+     * 
+     * @param channelId the id of the channel, other than 0
+     * @return the stub of the logical device
+     */
+    public IoTDeviceStub openChannel(int channelId) {
+        if (channelId == 0)
+            throw new IllegalArgumentException("Channel 0 is the device of the connection!");
+        return new IoTDeviceStub(this.connection, channelId);
+    }
+
+    /**
+     * Send the operation code {@code OP_CLOSE_CHANNEL}, turning off the logical
+     * device of this stub.
+     * 
+     * @return true if the response code was OK or false otherwise
+     * @throws IOException            if an I/O error occurs when sending the
+     *                                message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     *                                be found
+     */
+    public boolean closeChannel() throws ClassNotFoundException, IOException {
+        Message response = messageSendReceive(new Message(OpCode.OP_CLOSE_CHANNEL));
+        return response.getOpCode() == OpCode.OK;
+    }
+
+    /**
+     * Starts sending {@code OP_PING} to the server whenever the connection has
+     * been quiet for a whole interval, so the server doesn't close the session
+     * as idle while the user is typing.
+     * 
+     * @param intervalSeconds the interval between heartbeats, in seconds
+     */
+    public void startHeartbeat(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (System.nanoTime() - this.connection.lastActivity < intervalNanos)
+                return;
+            try {
+                messageSendReceive(new Message(OpCode.OP_PING));
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Failed to send heartbeat!");
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -136,15 +310,173 @@ public class IoTDeviceStub {
      * @throws ClassNotFoundException if the class of a serialized object could not
      */
     public boolean sendTemperature(float temperature) throws ClassNotFoundException, IOException {
+        Map<String, Key> cachedKeys = this.cachedDomainKeys;
+        if (cachedKeys == null) {
+            ETMessageData data = new ETMessageData(encryptTemperature(temperature, getDomainKeys()));
+            Message response = messageSendReceive(new Message(OpCode.OP_ET, data));
+            return response.getOpCode() == OpCode.OK;
+        }
+        // the domain keys rarely change, so they are refreshed while the
+        // temperature encrypted with the cached ones is already on its way
+        ETMessageData data = new ETMessageData(encryptTemperature(temperature, cachedKeys));
+        CompletableFuture<Message> keysRequest = sendRequest(new Message(OpCode.OP_DOMAIN_KEYS), false);
+        Message etMessage = new Message(OpCode.OP_ET, data);
+        CompletableFuture<Message> etRequest = sendRequest(etMessage, true);
+        Message keysResponse = awaitResponse(keysRequest);
+        Map<String, Key> domainKeys = keysResponse.getOpCode() == OpCode.OK ? unwrapDomainKeys(keysResponse)
+                : cachedKeys;
+        boolean sent = retry(etMessage, awaitResponse(etRequest)).getOpCode() == OpCode.OK;
+        Map<String, Key> changedKeys = new HashMap<>();
+        domainKeys.forEach((domain, key) -> {
+            if (cachedKeys.get(domain) != key)
+                changedKeys.put(domain, key);
+        });
+        if (!changedKeys.isEmpty()) {
+            data = new ETMessageData(encryptTemperature(temperature, changedKeys));
+            sent = messageSendReceive(new Message(OpCode.OP_ET, data)).getOpCode() == OpCode.OK;
+        }
+        return sent;
+    }
+
+    /**
+     * Starts batching the temperatures given to
+     * {@link #recordTemperature(float)}. A batch is sent once it has a number of
+     * readings, or once its oldest reading waited for a while.
+     * 
+     * @param maxReadings    the number of readings that fill a batch
+     * @param maxDelayMillis the longest a reading waits to be sent, in
+     *                       milliseconds
+     */
+    public void startTemperatureBatching(int maxReadings, long maxDelayMillis) {
+        this.batchSize = Math.max(1, maxReadings);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "temperature-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkMillis = Math.max(10, maxDelayMillis / 4);
+        scheduler.scheduleWithFixedDelay(() -> {
+            synchronized (this.pendingReadings) {
+                if (this.pendingReadings.isEmpty()
+                        || System.currentTimeMillis() - this.pendingReadings.get(0).getFirst() < maxDelayMillis)
+                    return;
+            }
+            try {
+                if (!flushTemperatures())
+                    System.err.println("Failed to send the batched temperatures!");
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Failed to send the batched temperatures!");
+            }
+        }, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a temperature read now, to be sent with the next batch. The batch
+     * is sent right away if the temperature fills it.
+     * 
+     * @param temperature the float that represents the temperature
+     * @return true if the temperature was queued or the batch was sent, false if
+     *         the batch failed to be sent
+     * @throws IOException            if an I/O error occurs when sending the
+     *                                message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     *                                be found
+     */
+    public boolean recordTemperature(float temperature) throws ClassNotFoundException, IOException {
+        boolean full;
+        synchronized (this.pendingReadings) {
+            this.pendingReadings.add(new Pair<>(System.currentTimeMillis(), temperature));
+            full = this.pendingReadings.size() >= this.batchSize;
+        }
+        return !full || flushTemperatures();
+    }
+
+    /**
+     * Sends the recorded temperatures in a single {@code OP_ET_BATCH}, with the
+     * domain keys fetched once for the whole batch. Unless
+     * {@code --pack-temperatures=false}, the temperatures are packed with
+     * {@link TemperatureCodec} and the block is encrypted once per domain,
+     * instead of each temperature on its own. If the server didn't agree
+     * to batches, only the newest temperature is sent with {@code OP_ET}, as the
+     * server keeps only the newest temperature of a device anyway.
+     * 
+     * @return true if there was nothing to send or the response code was OK,
+     *         false otherwise
+     * @throws IOException            if an I/O error occurs when sending the
+     *                                message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     *                                be found
+     */
+    public boolean flushTemperatures() throws ClassNotFoundException, IOException {
+        List<Pair<Long, Float>> readings;
+        synchronized (this.pendingReadings) {
+            if (this.pendingReadings.isEmpty())
+                return true;
+            readings = new ArrayList<>(this.pendingReadings);
+            this.pendingReadings.clear();
+        }
+        if (!this.protocol.hasFeature(ProtocolHello.FEATURE_ET_BATCH))
+            return sendTemperature(readings.get(readings.size() - 1).getSecond());
         Map<String, Key> domainKeys = getDomainKeys();
+        Map<String, List<TemperatureReading>> domainsReadings = new HashMap<>();
+        if (this.commandLineArgs.getBooleanOption("pack-temperatures", true)) {
+            long newest = readings.get(readings.size() - 1).getFirst();
+            encryptTemperatureData(TemperatureCodec.encode(readings), domainKeys).forEach(
+                    (domain, block) -> domainsReadings.put(domain, List.of(new TemperatureReading(newest, block))));
+        } else {
+            for (Pair<Long, Float> reading : readings) {
+                encryptTemperature(reading.getSecond(), domainKeys).forEach((domain, temperature) -> domainsReadings
+                        .computeIfAbsent(domain, d -> new ArrayList<>())
+                        .add(new TemperatureReading(reading.getFirst(), temperature)));
+            }
+        }
+        ETBatchMessageData data = new ETBatchMessageData(domainsReadings);
+        Message response = messageSendReceive(new Message(OpCode.OP_ET_BATCH, data));
+        return response.getOpCode() == OpCode.OK;
+    }
+
+    /**
+     * Encrypts a temperature with the key of each domain.
+     * 
+     * @param temperature the float that represents the temperature
+     * @param domainKeys  the map with the domain name and its key
+     * @return a map with the domain name and the encrypted temperature
+     * @throws IOException if it fails to encode the parameters of the cipher
+     */
+    private Map<String, EncryptedData> encryptTemperature(float temperature, Map<String, Key> domainKeys)
+            throws IOException {
+        return encryptTemperatureData(Utils.floatToBytes(temperature), domainKeys);
+    }
+
+    /**
+     * Encrypts a temperature, or a block of temperatures, with the key of each
+     * domain.
+     * 
+     * @param data       the bytes of the temperature or of the block
+     * @param domainKeys the map with the domain name and its key
+     * @return a map with the domain name and the encrypted data
+     * @throws IOException if it fails to encode the parameters of the cipher
+     */
+    private Map<String, EncryptedData> encryptTemperatureData(byte[] data, Map<String, Key> domainKeys)
+            throws IOException {
         Map<String, EncryptedData> temperatures = new HashMap<>();
+        boolean gcm = this.commandLineArgs.getOption("telemetry-format", "pbe").equals("gcm");
         for (String domain : domainKeys.keySet()) {
             Key key = domainKeys.get(domain);
+            if (gcm) {
+                try {
+                    temperatures.put(domain, GcmRecord.seal(getRecordKey(domain, key), data,
+                            domain.getBytes(StandardCharsets.UTF_8)));
+                } catch (GeneralSecurityException e) {
+                    System.err.println("Failed to encrypt temperature for domain " + domain);
+                }
+                continue;
+            }
             Cipher cipher;
             try {
                 cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
                 cipher.init(Cipher.ENCRYPT_MODE, key);
-                byte[] encryptedTemperature = cipher.doFinal(Utils.floatToBytes(temperature));
+                byte[] encryptedTemperature = cipher.doFinal(data);
                 byte[] ivParams = cipher.getParameters().getEncoded();
                 temperatures.put(domain, new EncryptedData(encryptedTemperature, ivParams));
 
@@ -153,9 +485,25 @@ public class IoTDeviceStub {
                 System.err.println("Failed to encrypt temperature for domain " + domain);
             }
         }
-        ETMessageData data = new ETMessageData(temperatures);
-        Message response = messageSendReceive(new Message(OpCode.OP_ET, data));
-        return response.getOpCode() == OpCode.OK;
+        return temperatures;
+    }
+
+    /**
+     * Gets the AES key of the records of a domain, deriving it only when the
+     * key of the domain changes.
+     * 
+     * @param domain    the name of the domain
+     * @param domainKey the PBE key of the domain
+     * @return the AES key of the records of the domain
+     * @throws GeneralSecurityException if the key can't be derived
+     */
+    private SecretKey getRecordKey(String domain, Key domainKey) throws GeneralSecurityException {
+        Pair<Key, SecretKey> cached = this.recordKeys.get(domain);
+        if (cached != null && Arrays.equals(cached.getFirst().getEncoded(), domainKey.getEncoded()))
+            return cached.getSecond();
+        SecretKey recordKey = GcmRecord.deriveKey(domainKey, domain);
+        this.recordKeys.put(domain, new Pair<>(domainKey, recordKey));
+        return recordKey;
     }
 
     /**
@@ -203,28 +551,53 @@ public class IoTDeviceStub {
      */
     public Pair<OpCode, Map<String, Float>> receiveTemperature(String domainName)
             throws ClassNotFoundException, IOException {
+        Pair<OpCode, Map<String, List<Pair<Long, Float>>>> series = receiveTemperatureSeries(domainName);
+        if (series.getSecond() == null) {
+            return new Pair<OpCode, Map<String, Float>>(series.getFirst(), null);
+        }
+        Map<String, Float> temperatures = new HashMap<>();
+        series.getSecond().forEach((device, readings) -> temperatures.put(device,
+                readings.get(readings.size() - 1).getSecond()));
+        return new Pair<>(series.getFirst(), temperatures);
+    }
+
+    /**
+     * Send the operation code {@code OP_RT} and the domain's name to the server,
+     * unpacking the blocks of temperatures sent in batches.
+     * 
+     * @param domainName the name of the domain
+     * @ensures {@code \result != null}
+     * @return a pair with the response code from the server and the map with the
+     *         device id and its temperatures, oldest first, as pairs of timestamp
+     *         and temperature. The timestamp is null for a temperature sent on
+     *         its own.
+     * @throws IOException            if an I/O error occurs when sending the
+     *                                message
+     * @throws ClassNotFoundException if the class of a serialized object could not
+     */
+    public Pair<OpCode, Map<String, List<Pair<Long, Float>>>> receiveTemperatureSeries(String domainName)
+            throws ClassNotFoundException, IOException {
         RTMessageData reqData = new RTMessageData(domainName);
         Message response = messageSendReceive(new Message(OpCode.OP_RT, reqData));
         if (response.getOpCode() != OpCode.OK) {
-            return new Pair<OpCode, Map<String, Float>>(response.getOpCode(), null);
+            return new Pair<OpCode, Map<String, List<Pair<Long, Float>>>>(response.getOpCode(), null);
         }
         RTResponseData resData = (RTResponseData) response.getData();
         Map<String, EncryptedData> encryptedTemps = resData.getDeviceTemperatures();
-        Map<String, Float> temperatures = new HashMap<>();
+        Map<String, List<Pair<Long, Float>>> temperatures = new HashMap<>();
 
         byte[] wrappedKey = resData.getWrappedDomainKey();
         for (String device : encryptedTemps.keySet()) {
             EncryptedData encryptedData = encryptedTemps.get(device);
             try {
-                byte[] decryptedBytes = decryptEncryptedData(encryptedData, wrappedKey);
-                float temperature = Utils.bytesToFloat(decryptedBytes);
-                temperatures.put(device, temperature);
-                
-            } catch (NoSuchAlgorithmException | NoSuchPaddingException | IllegalBlockSizeException
-                    | BadPaddingException | InvalidKeyException | InvalidAlgorithmParameterException
-                    | UnrecoverableKeyException | KeyStoreException e) {
+                byte[] decryptedBytes = decryptTemperature(encryptedData, wrappedKey, domainName);
+                if (TemperatureCodec.isBlock(decryptedBytes))
+                    temperatures.put(device, TemperatureCodec.decode(decryptedBytes));
+                else
+                    temperatures.put(device, List.of(new Pair<>(null, Utils.bytesToFloat(decryptedBytes))));
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
                 System.err.println("Failed to decrypt temperature of device " + device);
-                return new Pair<OpCode, Map<String, Float>>(OpCode.ERROR, null);
+                return new Pair<OpCode, Map<String, List<Pair<Long, Float>>>>(OpCode.ERROR, null);
             }
         }
         return new Pair<>(response.getOpCode(), temperatures);
@@ -264,12 +637,16 @@ public class IoTDeviceStub {
     public List<String> listDomains() throws IOException, ClassNotFoundException {
         Message message = new Message(OpCode.OP_MD);
         Message response = messageSendReceive(message);
+        if (response.getOpCode() != OpCode.OK)
+            return List.of();
         MDResponseMessageData data = (MDResponseMessageData) response.getData();
         return data.getDomainNames();
     }
 
     /**
-     * Sends a message object and receives it.
+     * Sends a message object and receives its response. A message throttled by
+     * the server, or refused because the server is busy, is sent again a few
+     * times, see {@link #retry(Message, Message)}.
      * 
      * @param message the Message to be sent
      * @return the received message
@@ -279,15 +656,164 @@ public class IoTDeviceStub {
      *                                be
      */
     private Message messageSendReceive(Message message) throws IOException, ClassNotFoundException {
+        return retry(message, awaitResponse(sendRequest(message)));
+    }
+
+    /**
+     * Sends a message again while the server throttles it, after a growing
+     * delay, or while the server is busy, after the delay it asked for. A
+     * server that closed the connection after a {@code BUSY} is shutting down,
+     * so the device leaves.
+     * 
+     * @param message  the Message that was sent
+     * @param response the response to the message
+     * @return the last received message
+     */
+    private Message retry(Message message, Message response) {
+        for (int attempt = 0; attempt < THROTTLED_RETRIES && isRetryable(response); attempt++) {
+            long delayMillis = response.getOpCode() == OpCode.BUSY
+                    ? ((BusyResponseData) response.getData()).getRetryAfterMillis()
+                    : THROTTLED_BACKOFF_MILLIS << attempt;
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (response.getOpCode() == OpCode.BUSY && this.connection.readFailure != null)
+                exitBusy(response);
+            response = awaitResponse(sendRequest(message));
+        }
+        if (response.getOpCode() == OpCode.THROTTLED)
+            System.err.println("The server is throttling this device! Slow down.");
+        else if (response.getOpCode() == OpCode.BUSY)
+            System.err.println("The server is busy! The request was not handled.");
+        return response;
+    }
+
+    /**
+     * Checks if a response asks the device to send its request again later.
+     * 
+     * @param response the received message
+     * @return true if the request was throttled or the server was busy, false
+     *         otherwise
+     */
+    private static boolean isRetryable(Message response) {
+        return response.getOpCode() == OpCode.THROTTLED || response.getOpCode() == OpCode.BUSY;
+    }
+
+    /**
+     * Sends a message object with a new correlation id, on the channel of this
+     * stub, without waiting for its response.
+     * 
+     * @param message the Message to be sent
+     * @return the future response of the message
+     */
+    private CompletableFuture<Message> sendRequest(Message message) {
+        return sendRequest(message, true);
+    }
+
+    /**
+     * Writes a message object with a new correlation id, on the channel of this
+     * stub, without waiting for its response. A message that is not flushed
+     * leaves with the next flushed one.
+     * 
+     * @param message the Message to be sent
+     * @param flush   true to send the message now, false to keep it buffered
+     * @return the future response of the message
+     */
+    private CompletableFuture<Message> sendRequest(Message message, boolean flush) {
+        int correlationId = this.nextCorrelationId.updateAndGet(id -> id == Integer.MAX_VALUE ? 1 : id + 1);
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        synchronized (this.channel) {
+            synchronized (this.pendingRequests) {
+                Exception readFailure = this.connection.readFailure;
+                if (readFailure != null) {
+                    response.completeExceptionally(readFailure);
+                    return response;
+                }
+                this.pendingRequests.put(correlationId, response);
+            }
+            try {
+                this.channel.bufferMessage(message.withCorrelationId(correlationId).withChannelId(this.channelId));
+                if (flush)
+                    this.channel.flush();
+            } catch (IOException e) {
+                synchronized (this.pendingRequests) {
+                    this.pendingRequests.remove(correlationId);
+                }
+                response.completeExceptionally(e);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Waits for the response of a request, leaving if the connection failed, or
+     * if the server is busy before the device logged in. Once logged in, a
+     * {@code BUSY} only refuses that request, and is returned to be retried.
+     * 
+     * @param request the future response of the request
+     * @return the received message
+     */
+    private Message awaitResponse(CompletableFuture<Message> request) {
+        Message response;
         try {
-            this.out.writeObject(message);
-            this.out.flush();
-            return (Message) this.in.readObject();
-        } catch (Exception e) {
+            response = request.get();
+        } catch (InterruptedException | ExecutionException e) {
             System.err.println("Failed to read server message!");
             System.exit(-1);
             return null;
         }
+        if (response.getOpCode() == OpCode.BUSY && !this.connection.authenticated)
+            exitBusy(response);
+        return response;
+    }
+
+    /**
+     * Reads the messages sent by the server and hands each one to its request,
+     * until the connection fails. Responses without correlation id, from servers
+     * that answer in order, go to the oldest request.
+     */
+    private void readResponses() {
+        try {
+            while (true) {
+                Message response = this.channel.readMessage();
+                this.lastActivity = System.nanoTime();
+                CompletableFuture<Message> request;
+                synchronized (this.pendingRequests) {
+                    if (response.getCorrelationId() != 0) {
+                        request = this.pendingRequests.remove(response.getCorrelationId());
+                    } else {
+                        Iterator<CompletableFuture<Message>> oldest = this.pendingRequests.values().iterator();
+                        request = oldest.hasNext() ? oldest.next() : null;
+                        if (request != null)
+                            oldest.remove();
+                    }
+                }
+                if (request != null)
+                    request.complete(response);
+                else if (response.getOpCode() == OpCode.BUSY)
+                    exitBusy(response);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            synchronized (this.pendingRequests) {
+                this.readFailure = e;
+                this.pendingRequests.values().forEach(request -> request.completeExceptionally(e));
+                this.pendingRequests.clear();
+            }
+        }
+    }
+
+    /**
+     * Tells the user the server is busy and leaves.
+     * 
+     * @param response the {@code BUSY} message sent by the server
+     */
+    private static void exitBusy(Message response) {
+        long retryAfterMillis = ((BusyResponseData) response.getData()).getRetryAfterMillis();
+        System.err.println("The server is busy! Try again in " + (retryAfterMillis + 999) / 1000 + " seconds.");
+        System.exit(-1);
     }
 
     /**
@@ -300,13 +826,31 @@ public class IoTDeviceStub {
      *                                be
      */
     private Map<String, Key> getDomainKeys() throws ClassNotFoundException, IOException {
-        Message domainKeysResponse = messageSendReceive(new Message(OpCode.OP_DOMAIN_KEYS));
+        return unwrapDomainKeys(messageSendReceive(new Message(OpCode.OP_DOMAIN_KEYS)));
+    }
+
+    /**
+     * Unwraps the domain keys sent by the server and caches them. The keys whose
+     * wrapped bytes didn't change are taken from the cache, so they are not
+     * unwrapped again.
+     * 
+     * @param domainKeysResponse the response to {@code OP_DOMAIN_KEYS}
+     * @return a map with the domain name and its key
+     */
+    private Map<String, Key> unwrapDomainKeys(Message domainKeysResponse) {
         DomainKeysResponseData domainKeysData = (DomainKeysResponseData) domainKeysResponse.getData();
 
         Map<String, byte[]> wrappedDomainKeys = domainKeysData.getDomainKeys();
         Map<String, Key> domainKeys = new HashMap<>();
+        Map<String, byte[]> cachedWrapped = this.cachedWrappedKeys;
+        Map<String, Key> cachedKeys = this.cachedDomainKeys;
 
         wrappedDomainKeys.forEach((domain, warppedKey) -> {
+            if (cachedWrapped != null && cachedKeys.get(domain) != null
+                    && Arrays.equals(cachedWrapped.get(domain), warppedKey)) {
+                domainKeys.put(domain, cachedKeys.get(domain));
+                return;
+            }
             try {
                 Key privateKey = this.keyStore.getKey("keyRSA", this.commandLineArgs.getKeyStorePassword().toCharArray());
                 Cipher cipher = Cipher.getInstance("RSA");
@@ -318,6 +862,8 @@ public class IoTDeviceStub {
                 System.err.println("Failed to unwrap domain key of domain " + domain + "!");
             }
         });
+        this.cachedDomainKeys = domainKeys;
+        this.cachedWrappedKeys = wrappedDomainKeys;
         return domainKeys;
     }
 
@@ -425,6 +971,8 @@ public class IoTDeviceStub {
             OpCode opCodeHash = responseHash.getOpCode();
             if (opCodeHash == OpCode.OK) {
                 System.out.println("Remote attestation successful!");
+                this.connection.authenticated = true;
+                saveTicket(responseHash);
             } else {
                 System.out.println("Remote attestation failed!");
                 System.exit(-1);
@@ -435,6 +983,96 @@ public class IoTDeviceStub {
         }
     }
 
+    /**
+     * Resumes the login with the ticket given by the last login, kept in the
+     * file of {@code --resume-ticket}. The ticket can only be used once, so it
+     * is replaced by the one of the answer, or deleted if it was refused.
+     * 
+     * @return true if the login was resumed, false if a full login is needed
+     */
+    public boolean resume() {
+        String ticketFile = this.commandLineArgs.getOption("resume-ticket", null);
+        if (ticketFile == null || !this.protocol.hasFeature(ProtocolHello.FEATURE_RESUME))
+            return false;
+        File file = new File(ticketFile);
+        byte[] ticket;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            // a ticket of another device would resume the login of that device
+            if (!in.readUTF().equals(this.commandLineArgs.getUserId())
+                    || in.readInt() != this.commandLineArgs.getDeviceId())
+                return false;
+            ticket = in.readAllBytes();
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            Message response = messageSendReceive(new Message(OpCode.OP_RESUME, new ResumeRequestData(ticket)));
+            if (response.getOpCode() != OpCode.OK) {
+                System.out.println("Resumption ticket refused, logging in!");
+                file.delete();
+                return false;
+            }
+            System.out.println("Login resumed!");
+            this.connection.authenticated = true;
+            saveTicket(response);
+            return true;
+        } catch (ClassNotFoundException | IOException e) {
+            System.err.println("Failed to send messages to server! (resume)");
+            System.exit(-1);
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the resumption ticket of the answer to a login in the file of
+     * {@code --resume-ticket}, readable only by its owner where the file
+     * system allows it. The file is replaced at once, so a crash never leaves
+     * half a ticket.
+     * 
+     * @param response the answer to the login
+     */
+    private void saveTicket(Message response) {
+        String ticketFile = this.commandLineArgs.getOption("resume-ticket", null);
+        if (ticketFile == null || !(response.getData() instanceof ResumptionTicketData))
+            return;
+        Path target = new File(ticketFile).getAbsoluteFile().toPath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp.toFile()))) {
+                if (temp.getFileSystem().supportedFileAttributeViews().contains("posix"))
+                    Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+                out.writeUTF(this.commandLineArgs.getUserId());
+                out.writeInt(this.commandLineArgs.getDeviceId());
+                out.write(((ResumptionTicketData) response.getData()).getTicket());
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to save resumption ticket!");
+        }
+    }
+
+    /**
+     * Decrypts a temperature, sealed either in an AES-GCM record or with PBE.
+     * 
+     * @param encryptedData the temperature to be decrypted
+     * @param wrappedKey    the wrapped key of the domain
+     * @param domainName    the name of the domain
+     * @return the decrypted temperature
+     * @throws GeneralSecurityException if the temperature can't be decrypted
+     * @throws IOException              if an I/O error occurs
+     */
+    private byte[] decryptTemperature(EncryptedData encryptedData, byte[] wrappedKey, String domainName)
+            throws GeneralSecurityException, IOException {
+        if (!GcmRecord.isRecord(encryptedData))
+            return decryptEncryptedData(encryptedData, wrappedKey);
+        Key privateKey = this.keyStore.getKey("keyRSA", this.commandLineArgs.getKeyStorePassword().toCharArray());
+        Cipher unwrapCipher = Cipher.getInstance("RSA");
+        unwrapCipher.init(Cipher.UNWRAP_MODE, privateKey);
+        Key key = unwrapCipher.unwrap(wrappedKey, "PBEWithHmacSHA256AndAES_128", Cipher.SECRET_KEY);
+        return GcmRecord.open(getRecordKey(domainName, key), encryptedData,
+                domainName.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Decrypts data with the parameters of PBE with Hmac and AES (128 bits)
      * 
@@ -1,5 +1,10 @@
 package iotdevice.utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import common.CommandLineArgsParseException;
 
 /**
@@ -18,6 +23,7 @@ public class CommandLineArgs {
     private final String keyStorePassword;
     private final int deviceId;
     private final String userId;
+    private final Map<String, String> options;
 
     /**
      * Constructor of the class.
@@ -29,9 +35,10 @@ public class CommandLineArgs {
      * @param keyStorePassword The password of the keystore and truststore
      * @param deviceId         The device id
      * @param userId           The user id
+     * @param options          The optional {@code --name=value} arguments
      */
     private CommandLineArgs(int port, String serverAddress, String trustStore, String keyStore, String keyStorePassword,
-            int deviceId, String userId) {
+            int deviceId, String userId, Map<String, String> options) {
         this.port = port;
         this.serverAddress = serverAddress;
         this.trustStore = trustStore;
@@ -39,6 +46,7 @@ public class CommandLineArgs {
         this.keyStorePassword = keyStorePassword;
         this.deviceId = deviceId;
         this.userId = userId;
+        this.options = options;
     }
 
     /**
@@ -50,10 +58,24 @@ public class CommandLineArgs {
      * @throws CommandLineArgsParseException If there is an error in any of the
      *                                       arguments.
      */
-    public static CommandLineArgs parse(String[] args) throws CommandLineArgsParseException {
+    public static CommandLineArgs parse(String[] rawArgs) throws CommandLineArgsParseException {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : rawArgs) {
+            if (arg.startsWith("--")) {
+                int separator = arg.indexOf('=');
+                if (separator < 0)
+                    options.put(arg.substring(2), "true");
+                else
+                    options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
         if (args.length != 6) {
             System.err.println(
-                    "Usage: java -jar IoTDevice.jar <serverAddress> <truststore> <keystore> <password-keystore> <dev-id> <user-id>");
+                    "Usage: java -jar IoTDevice.jar <serverAddress> <truststore> <keystore> <password-keystore> <dev-id> <user-id> [--option=value...]");
             throw new CommandLineArgsParseException("Invalid number of arguments!");
         }
         int port = 12345;
@@ -76,7 +98,8 @@ public class CommandLineArgs {
             throw new CommandLineArgsParseException("Invalid deviceId!", e);
         }
         String userId = args[5];
-        return new CommandLineArgs(port, serverAddress, trustStore, keyStore, keyStorePassword, deviceId, userId);
+        return new CommandLineArgs(port, serverAddress, trustStore, keyStore, keyStorePassword, deviceId, userId,
+                options);
     }
 
     /**
@@ -141,4 +164,65 @@ public class CommandLineArgs {
     public String getUserId() {
         return userId;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the value of an optional argument.
+     * 
+     * @param name         The name of the option, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given.
+     * @return The value of the option or the default value.
+     */
+    public String getOption(String name, String defaultValue) {
+        return this.options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Returns the value of an optional integer argument.
+     * 
+     * @param name         The name of the option, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given.
+     * @return The value of the option or the default value.
+     * @throws IllegalArgumentException If the option is not a valid integer.
+     */
+    public int getIntOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the value of an optional long argument.
+     * 
+     * @param name         The name of the option, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given.
+     * @return The value of the option or the default value.
+     * @throws IllegalArgumentException If the option is not a valid long.
+     */
+    public long getLongOption(String name, long defaultValue) {
+        String value = this.options.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Returns the value of an optional boolean argument.
+     * 
+     * @param name         The name of the option, without the leading dashes.
+     * @param defaultValue The value to return if the option was not given.
+     * @return The value of the option or the default value.
+     */
+    public boolean getBooleanOption(String name, boolean defaultValue) {
+        String value = this.options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,265 @@
+package iotdevice.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class with the methods to pack a series of timestamped temperatures
+ *         into a single block, in the style of the Gorilla time series
+ *         compression. Timestamps are stored as the difference between
+ *         consecutive deltas, and each temperature as the XOR with the one
+ *         before, keeping only its meaningful bits.
+ *         A block starts with the newest temperature as a plain 4 byte float,
+ *         so a device that doesn't know blocks still reads it as the
+ *         temperature of the device.
+ */
+public final class TemperatureCodec {
+
+    private static final int PREFIX_BYTES = Float.BYTES;
+
+    /**
+     * Constructor of the class.
+     */
+    private TemperatureCodec() {
+        throw new UnsupportedOperationException("Cannot create instance of " + getClass().getName());
+    }
+
+    /**
+     * Class that writes a sequence of bits.
+     */
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current = 0;
+        private int used = 0;
+
+        /**
+         * Writes the lowest bits of a value, most significant first.
+         * 
+         * @param value the value to write.
+         * @param bits  the number of bits to write, up to 64.
+         */
+        private void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                this.current = (this.current << 1) | (int) ((value >>> i) & 1);
+                if (++this.used == 8) {
+                    this.out.write(this.current);
+                    this.current = 0;
+                    this.used = 0;
+                }
+            }
+        }
+
+        /**
+         * Gets the written bits, with the last byte padded with zeros.
+         * 
+         * @return the written bytes.
+         */
+        private byte[] toByteArray() {
+            if (this.used > 0)
+                this.out.write(this.current << (8 - this.used));
+            return this.out.toByteArray();
+        }
+    }
+
+    /**
+     * Class that reads a sequence of bits.
+     */
+    private static class BitReader {
+
+        private final byte[] bytes;
+        private int position;
+
+        /**
+         * Constructor of the class.
+         * 
+         * @param bytes  the bytes to read.
+         * @param offset the byte to start at.
+         */
+        private BitReader(byte[] bytes, int offset) {
+            this.bytes = bytes;
+            this.position = offset * 8;
+        }
+
+        /**
+         * Reads a value, most significant bit first.
+         * 
+         * @param bits the number of bits to read, up to 64.
+         * @return the read value.
+         * @throws IllegalArgumentException if there are not enough bits.
+         */
+        private long read(int bits) {
+            if (this.position + bits > this.bytes.length * 8)
+                throw new IllegalArgumentException("Truncated temperature block!");
+            long value = 0;
+            for (int i = 0; i < bits; i++, this.position++)
+                value = (value << 1) | ((this.bytes[this.position >>> 3] >>> (7 - (this.position & 7))) & 1);
+            return value;
+        }
+    }
+
+    /**
+     * Packs a series of temperatures into a block.
+     * 
+     * @param readings the pairs of timestamp, in milliseconds, and temperature,
+     *                 oldest first and not empty.
+     * @return the packed block.
+     */
+    public static byte[] encode(List<Pair<Long, Float>> readings) {
+        BitWriter writer = new BitWriter();
+        writer.write(readings.size(), 32);
+        long previousTime = readings.get(0).getFirst();
+        int previousValue = Float.floatToRawIntBits(readings.get(0).getSecond());
+        writer.write(previousTime, 64);
+        writer.write(previousValue, 32);
+        long previousDelta = 0;
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < readings.size(); i++) {
+            long time = readings.get(i).getFirst();
+            long delta = time - previousTime;
+            writeDeltaOfDelta(writer, delta - previousDelta);
+            previousTime = time;
+            previousDelta = delta;
+
+            int value = Float.floatToRawIntBits(readings.get(i).getSecond());
+            int xor = value ^ previousValue;
+            previousValue = value;
+            if (xor == 0) {
+                writer.write(0, 1);
+                continue;
+            }
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // the meaningful bits fit in the window of the previous value
+                writer.write(0b10, 2);
+                writer.write(xor >>> previousTrailing, 32 - previousLeading - previousTrailing);
+            } else {
+                int length = 32 - leading - trailing;
+                writer.write(0b11, 2);
+                writer.write(leading, 5);
+                writer.write(length - 1, 5);
+                writer.write(xor >>> trailing, length);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        byte[] bits = writer.toByteArray();
+        return ByteBuffer.allocate(PREFIX_BYTES + bits.length)
+                .putFloat(readings.get(readings.size() - 1).getSecond()).put(bits).array();
+    }
+
+    /**
+     * Writes the difference between two consecutive deltas, in the smallest of
+     * the buckets it fits.
+     * 
+     * @param writer       the writer of the block.
+     * @param deltaOfDelta the difference between the deltas.
+     */
+    private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writer.write(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writer.write(0b10, 2);
+            writer.write(deltaOfDelta, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writer.write(0b110, 3);
+            writer.write(deltaOfDelta, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writer.write(0b1110, 4);
+            writer.write(deltaOfDelta, 12);
+        } else {
+            writer.write(0b1111, 4);
+            writer.write(deltaOfDelta, 64);
+        }
+    }
+
+    /**
+     * Reads the difference between two consecutive deltas.
+     * 
+     * @param reader the reader of the block.
+     * @return the difference between the deltas.
+     */
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (reader.read(1) == 0)
+            return 0;
+        if (reader.read(1) == 0)
+            return signExtend(reader.read(7), 7);
+        if (reader.read(1) == 0)
+            return signExtend(reader.read(9), 9);
+        if (reader.read(1) == 0)
+            return signExtend(reader.read(12), 12);
+        return reader.read(64);
+    }
+
+    /**
+     * Restores the sign of a value stored in a number of bits. The upper bound
+     * of each bucket is stored as its negative counterpart, which is outside the
+     * bucket, so it is turned back into the bound.
+     * 
+     * @param value the stored bits.
+     * @param bits  the number of stored bits.
+     * @return the value.
+     */
+    private static long signExtend(long value, int bits) {
+        long extended = (value << (64 - bits)) >> (64 - bits);
+        long upperBound = 1L << (bits - 1);
+        return extended == -upperBound ? upperBound : extended;
+    }
+
+    /**
+     * Checks if decrypted temperature data is a packed block or a single
+     * temperature.
+     * 
+     * @param data the decrypted data.
+     * @return true if the data is a block, false if it is a single temperature.
+     */
+    public static boolean isBlock(byte[] data) {
+        return data.length > PREFIX_BYTES;
+    }
+
+    /**
+     * Unpacks a block into its series of temperatures.
+     * 
+     * @param block the packed block.
+     * @return the pairs of timestamp and temperature, oldest first.
+     * @throws IllegalArgumentException if the block is not valid.
+     */
+    public static List<Pair<Long, Float>> decode(byte[] block) {
+        BitReader reader = new BitReader(block, PREFIX_BYTES);
+        int count = (int) reader.read(32);
+        // a reading takes at least 2 bits
+        if (count <= 0 || count > (block.length - PREFIX_BYTES) * 4)
+            throw new IllegalArgumentException("Invalid temperature block!");
+        List<Pair<Long, Float>> readings = new ArrayList<>(count);
+        long time = reader.read(64);
+        int value = (int) reader.read(32);
+        readings.add(new Pair<>(time, Float.intBitsToFloat(value)));
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(reader);
+            time += delta;
+            if (reader.read(1) == 1) {
+                if (reader.read(1) == 1) {
+                    leading = (int) reader.read(5);
+                    int length = (int) reader.read(5) + 1;
+                    trailing = 32 - leading - length;
+                    if (trailing < 0)
+                        throw new IllegalArgumentException("Invalid temperature block!");
+                }
+                value ^= (int) reader.read(32 - leading - trailing) << trailing;
+            }
+            readings.add(new Pair<>(time, Float.intBitsToFloat(value)));
+        }
+        return readings;
+    }
+}
@@ -0,0 +1,141 @@
+package iotserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.Key;
+import java.util.logging.Logger;
+
+import common.OpCode;
+import common.messages.Message;
+import common.messages.types.response.BusyResponseData;
+import iotserver.network.AdmissionController;
+import iotserver.network.Bulkheads;
+import iotserver.network.IdleReaper;
+import iotserver.network.RateLimiter;
+import iotserver.network.ServerConnection;
+import iotserver.network.SessionExecutor;
+import iotserver.network.ShutdownCoordinator;
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerLogger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ * 
+ *         Class that represents the session of a client connection, which is
+ *         run by a {@link SessionExecutor} once the {@link AdmissionController}
+ *         admits it.
+ */
+public class ClientSession implements Runnable, AdmissionController.Candidate, ServerConnection {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(ClientSession.class.getSimpleName());
+    private static final ShutdownCoordinator SHUTDOWN_COORDINATOR = ShutdownCoordinator.getInstance();
+
+    private final Socket socket;
+    private final IoTServerSkel serverSkel;
+    private final SessionExecutor sessionExecutor;
+    private final AdmissionController admissionController;
+    private final IdleReaper idleReaper;
+
+    /**
+     * Constructor of the class.
+     * 
+     * @param socket              the socket to communicate with the server
+     * @param commandLineArgs     the command line arguments
+     * @param secretKey           the secret key generated when the server starts
+     * @param sessionExecutor     the executor that runs the session
+     * @param admissionController the controller that admits the session
+     * @param idleReaper          the reaper that closes the session when it is
+     *                            idle, or null to keep idle sessions open
+     * @param bulkheads           the pools that run the requests, or null to
+     *                            run them on the session thread
+     * @param rateLimiter         the limiter of the requests of each device and
+     *                            user, or null for no limit
+     * @throws IOException if an I/O error occurs when creating the input and output
+     *                     streams.
+     */
+    public ClientSession(Socket socket, CommandLineArgs commandLineArgs, Key secretKey,
+            SessionExecutor sessionExecutor, AdmissionController admissionController, IdleReaper idleReaper,
+            Bulkheads bulkheads, RateLimiter rateLimiter) throws IOException {
+        this.socket = socket;
+        this.serverSkel = new IoTServerSkel(socket, commandLineArgs, secretKey);
+        int pipelineDepth = commandLineArgs.getIntOption("pipeline-depth", 8);
+        if (pipelineDepth > 0)
+            this.serverSkel.setPipeline(sessionExecutor, pipelineDepth);
+        if (bulkheads != null)
+            this.serverSkel.setBulkheads(bulkheads);
+        if (rateLimiter != null)
+            this.serverSkel.setRateLimiter(rateLimiter);
+        this.sessionExecutor = sessionExecutor;
+        this.admissionController = admissionController;
+        this.idleReaper = idleReaper;
+    }
+
+    @Override
+    public void start() {
+        this.sessionExecutor.execute(this);
+    }
+
+    @Override
+    public void reject(long retryAfterMillis) {
+        try {
+            this.serverSkel.sendMessage(new Message(OpCode.BUSY, new BusyResponseData(retryAfterMillis)));
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to send busy message!");
+        }
+        close();
+    }
+
+    @Override
+    public void run() {
+        LOGGER.info(() -> "IoTDevice connected!");
+        IdleReaper.Entry idleEntry = null;
+        if (this.idleReaper != null) {
+            idleEntry = this.idleReaper.register(this::forceClose);
+            this.serverSkel.setActivityListener(idleEntry::touch);
+        }
+        SHUTDOWN_COORDINATOR.register(this);
+        try {
+            boolean shouldClouse = false;
+            while (!shouldClouse) {
+                shouldClouse = this.serverSkel.handleMessage();
+            }
+            close();
+        } finally {
+            SHUTDOWN_COORDINATOR.unregister(this);
+            if (idleEntry != null)
+                idleEntry.cancel();
+            this.admissionController.release();
+        }
+    }
+
+    @Override
+    public void drain(long retryAfterMillis) {
+        if (!this.serverSkel.drain(retryAfterMillis))
+            return;
+        try {
+            this.serverSkel.sendMessage(this.serverSkel.getDrainNotice());
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to send busy message!");
+        }
+        forceClose();
+    }
+
+    @Override
+    public void forceClose() {
+        this.serverSkel.closeConnection();
+        close();
+    }
+
+    /**
+     * Closes the socket of the connection.
+     */
+    private void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to close socket connection!");
+        }
+    }
+}
@@ -17,7 +17,7 @@ public class Device {
     private static final Logger LOGGER = ServerLogger.getLogger(Device.class.getSimpleName());
     private final User user;
     private final int id;
-    private boolean isOn = false;
+    private volatile boolean isOn = false;
 
     /**
      * Constructor of the class.
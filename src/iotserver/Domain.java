@@ -2,12 +2,15 @@ package iotserver;
 
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import common.data.EncryptedData;
+import common.data.TemperatureReading;
 import iotserver.utils.ServerLogger;
 
 /**
@@ -20,6 +23,7 @@ import iotserver.utils.ServerLogger;
 public class Domain {
 
     private static final Logger LOGGER = ServerLogger.getLogger(Domain.class.getSimpleName());
+    private static final AtomicLong STORED_TEMPERATURE_BYTES = new AtomicLong();
 
     private final Map<User, byte[]> userDomainKeys = new ConcurrentHashMap<>();
     private final Map<Device, EncryptedData> deviceTemperatures = new ConcurrentHashMap<>();
@@ -94,10 +98,62 @@ public class Domain {
      * @param temperature The encrypted data of the temperature.
      */
     public void updateDeviceTemp(Device device, EncryptedData temperature) {
-        this.deviceTemperatures.put(device, temperature);
+        storeTemperature(device, temperature);
         LOGGER.info(() -> "Update " + device.toString() + " temperature added to domain " + this.name + " bytes: " + Arrays.toString(temperature.getData()));
     }
 
+    /**
+     * Updates the temperature of a device in this domain from a batch of
+     * readings. Only the newest reading is kept, so the batch is applied with
+     * a single update.
+     * 
+     * @param device   The device to update the temperature.
+     * @param readings The readings of the device, not empty.
+     */
+    public void updateDeviceTemps(Device device, List<TemperatureReading> readings) {
+        TemperatureReading newest = readings.get(0);
+        for (TemperatureReading reading : readings)
+            if (reading.getTimestamp() >= newest.getTimestamp())
+                newest = reading;
+        storeTemperature(device, newest.getTemperature());
+        LOGGER.info(() -> "Update " + device.toString() + " temperature added to domain " + this.name + " from "
+                + readings.size() + " readings");
+    }
+
+    /**
+     * Stores the temperature of a device, counting the bytes it takes in place
+     * of the one it replaces.
+     * 
+     * @param device      The device of the temperature.
+     * @param temperature The encrypted data of the temperature.
+     */
+    private void storeTemperature(Device device, EncryptedData temperature) {
+        EncryptedData previous = this.deviceTemperatures.put(device, temperature);
+        STORED_TEMPERATURE_BYTES.addAndGet(sizeOf(temperature) - sizeOf(previous));
+    }
+
+    /**
+     * Gets the bytes of an encrypted temperature.
+     * 
+     * @param temperature The encrypted data, or null.
+     * @return The length of its data and its iv.
+     */
+    private static long sizeOf(EncryptedData temperature) {
+        if (temperature == null)
+            return 0;
+        return (temperature.getData() == null ? 0 : temperature.getData().length)
+                + (temperature.getIV() == null ? 0 : temperature.getIV().length);
+    }
+
+    /**
+     * Gets the bytes taken by the stored temperatures of all the domains.
+     * 
+     * @return The length of the data and iv of the stored temperatures.
+     */
+    public static long getStoredTemperatureBytes() {
+        return STORED_TEMPERATURE_BYTES.get();
+    }
+
     /**
      * Updates the image of a device in this domain.
      * 
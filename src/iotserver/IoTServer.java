@@ -6,23 +6,48 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLServerSocketFactory;
 
 import common.CommandLineArgsParseException;
 import common.Utils;
+import common.messages.MessageFraming;
 import iotserver.managers.DomainManager;
+import iotserver.managers.PublicKeyCache;
 import iotserver.managers.UserManager;
+import iotserver.network.AdmissionController;
+import iotserver.network.Bulkheads;
+import iotserver.network.CryptoExecutor;
+import iotserver.network.HandshakeExecutor;
+import iotserver.network.IdleReaper;
+import iotserver.network.NioServer;
+import iotserver.network.RateLimiter;
+import iotserver.network.ResumptionTickets;
+import iotserver.network.SessionExecutor;
+import iotserver.network.ShutdownCoordinator;
+import iotserver.network.TlsSessions;
+import iotserver.twofactor.TwoFactorDispatcher;
+import iotserver.utils.AttestationReference;
 import iotserver.utils.CommandLineArgs;
 import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
 
 /**
  * @author 58180 Rodrigo Correia
@@ -39,29 +64,72 @@ public class IoTServer {
     public static void main(String[] args) {
         try {
             CommandLineArgs commandLineArgs = CommandLineArgs.parse(args);
-            ServerSocket serverSocket = createServerSocket(commandLineArgs);
+            CryptoExecutor.init(commandLineArgs);
+            boolean nioTransport = commandLineArgs.getOption("transport", "socket").equals("nio");
+            List<ServerSocket> serverSockets = nioTransport ? null : createServerSockets(commandLineArgs);
             Key cipherKey = generetePBEKey(commandLineArgs);
             if (UserManager.getInstance().loadUsers(cipherKey) && DomainManager.getInstance().loadDomains(cipherKey)) {
-                shutdownHook(cipherKey);
-                mainLoop(serverSocket, commandLineArgs, cipherKey);
+                shutdownHook(cipherKey, commandLineArgs);
+                TwoFactorDispatcher.init(commandLineArgs);
+                ResumptionTickets.getInstance().setWindow(commandLineArgs.getLongOption("resume-window", 0));
+                preloadAttestationReference(cipherKey);
+                PublicKeyCache.getInstance().setMaxEntries(
+                        commandLineArgs.getIntOption("public-key-cache", PublicKeyCache.DEFAULT_MAX_ENTRIES));
+                long metricsInterval = commandLineArgs.getLongOption("metrics-interval", 60);
+                if (metricsInterval > 0)
+                    ServerMetrics.getInstance().startReporting(metricsInterval);
+                if (nioTransport)
+                    nioLoop(commandLineArgs, cipherKey);
+                else
+                    mainLoop(serverSockets, commandLineArgs, cipherKey);
             }
         } catch (CommandLineArgsParseException e) {
             System.err.println("Failed to parse command line args: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            // an option with an invalid value, such as --workers=x
+            System.err.println("Failed to parse command line args: " + e.getMessage());
+            System.exit(-1);
         }
     }
 
     /**
-     * Creates a new SSLServersocket.
+     * Creates the SSLServersockets of the server. With more than one acceptor,
+     * each one gets its own socket bound to the same port with
+     * {@code SO_REUSEPORT}, so the kernel spreads the connections among them.
+     * Without {@code SO_REUSEPORT}, all the acceptors share a single socket.
      * 
      * @param commandLineArgs The command line arguments of the program.
-     * @return The created server socket.
+     * @return The created server sockets, one per acceptor.
      */
-    private static ServerSocket createServerSocket(CommandLineArgs commandLineArgs) {
-        System.setProperty("javax.net.ssl.keyStore", commandLineArgs.getKeyStore());
-        System.setProperty("javax.net.ssl.keyStorePassword", commandLineArgs.getKeyStorePassword());
+    private static List<ServerSocket> createServerSockets(CommandLineArgs commandLineArgs) {
+        configureKeyStore(commandLineArgs);
         ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
+        int acceptors = Math.max(1, commandLineArgs.getIntOption("acceptors", 1));
+        List<ServerSocket> serverSockets = new ArrayList<>(acceptors);
         try {
-            return ssf.createServerSocket(commandLineArgs.getPort());
+            if (acceptors == 1) {
+                serverSockets.add(ssf.createServerSocket(commandLineArgs.getPort()));
+                return serverSockets;
+            }
+            ServerSocket first = ssf.createServerSocket();
+            boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort)
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            first.bind(new InetSocketAddress(commandLineArgs.getPort()));
+            serverSockets.add(first);
+            for (int i = 1; i < acceptors; i++) {
+                if (reusePort) {
+                    ServerSocket serverSocket = ssf.createServerSocket();
+                    serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    serverSocket.bind(new InetSocketAddress(commandLineArgs.getPort()));
+                    serverSockets.add(serverSocket);
+                } else {
+                    serverSockets.add(first);
+                }
+            }
+            if (!reusePort)
+                LOGGER.warning(() -> "SO_REUSEPORT is not supported, the acceptors share one socket!");
+            return serverSockets;
         } catch (IOException e) {
             LOGGER.severe(() -> "Failed to create server socket!");
             System.exit(-1);
@@ -70,36 +138,209 @@ public class IoTServer {
     }
 
     /**
-     * Starts the main loop of the server, accepting incoming connections.
+     * Sets the keystore and the session resumption of the default TLS context of
+     * the server.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     */
+    private static void configureKeyStore(CommandLineArgs commandLineArgs) {
+        System.setProperty("javax.net.ssl.keyStore", commandLineArgs.getKeyStore());
+        System.setProperty("javax.net.ssl.keyStorePassword", commandLineArgs.getKeyStorePassword());
+        TlsSessions.configure(commandLineArgs);
+    }
+
+    /**
+     * Starts the non-blocking server, where a selector thread does the network
+     * and TLS work and a pool of workers processes the requests.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     * @param secretKey       The secret key generated when the server starts.
+     */
+    private static void nioLoop(CommandLineArgs commandLineArgs, Key secretKey) {
+        configureKeyStore(commandLineArgs);
+        int workerThreads = commandLineArgs.getIntOption("workers", Runtime.getRuntime().availableProcessors() * 2);
+        int maxFrameBytes = commandLineArgs.getIntOption("max-frame-bytes", MessageFraming.DEFAULT_MAX_FRAME_BYTES);
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(workerThreads,
+                runnable -> new Thread(runnable, "nio-worker-" + counter.incrementAndGet()));
+        try {
+            NioServer server = new NioServer(commandLineArgs.getPort(), SSLContext.getDefault(), workers,
+                    createAdmissionController(commandLineArgs), commandLineArgs, secretKey, maxFrameBytes,
+                    commandLineArgs.getLongOption("handshake-timeout", 10000), createIdleReaper(commandLineArgs),
+                    createBulkheads(commandLineArgs), createRateLimiter(commandLineArgs));
+            ShutdownCoordinator.getInstance().addStopAcceptingAction(server::stopAccepting);
+            server.run();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LOGGER.severe(() -> "Failed to create nio server!");
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Starts the main loop of the server, where each acceptor thread accepts the
+     * incoming connections of its server socket. The handshakes and the stream
+     * setup run on a separate pool, so the acceptors only accept.
      * 
-     * @param serverSocket    The server socket.
+     * @param serverSockets   The server sockets, one per acceptor.
      * @param commandLineArgs The command line arguments of the program.
      */
-    private static void mainLoop(ServerSocket serverSocket, CommandLineArgs commandLineArgs, Key secretKey) {
-        LOGGER.info(() -> "Server started!");
-        while (true) {
+    private static void mainLoop(List<ServerSocket> serverSockets, CommandLineArgs commandLineArgs, Key secretKey) {
+        boolean useVirtualThreads = commandLineArgs.getOption("threads", "platform").equals("virtual");
+        SessionExecutor sessionExecutor = new SessionExecutor(useVirtualThreads);
+        AdmissionController admissionController = createAdmissionController(commandLineArgs);
+        IdleReaper idleReaper = createIdleReaper(commandLineArgs);
+        Bulkheads bulkheads = createBulkheads(commandLineArgs);
+        RateLimiter rateLimiter = createRateLimiter(commandLineArgs);
+        HandshakeExecutor handshakeExecutor = new HandshakeExecutor(
+                commandLineArgs.getIntOption("handshake-threads", Runtime.getRuntime().availableProcessors() * 2),
+                commandLineArgs.getIntOption("handshake-queue", 1024),
+                commandLineArgs.getLongOption("handshake-timeout", 10000), admissionController,
+                sock -> new ClientSession(sock, commandLineArgs, secretKey, sessionExecutor, admissionController,
+                        idleReaper, bulkheads, rateLimiter));
+        LOGGER.info(() -> "Server started! (" + (sessionExecutor.isVirtual() ? "virtual" : "platform") + " threads, "
+                + serverSockets.size() + " acceptors)");
+        List<Thread> acceptors = new ArrayList<>(serverSockets.size());
+        for (int i = 0; i < serverSockets.size(); i++) {
+            ServerSocket serverSocket = serverSockets.get(i);
+            ShutdownCoordinator.getInstance().addStopAcceptingAction(() -> closeServerSocket(serverSocket));
+            String counter = "acceptors." + i + ".accepted";
+            ServerMetrics.getInstance().registerRate(counter);
+            Thread acceptor = new Thread(() -> acceptLoop(serverSocket, handshakeExecutor, counter), "acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Accepts the incoming connections of a server socket and hands them to the
+     * handshake pool, until the socket is closed.
+     * 
+     * @param serverSocket      The server socket of the acceptor.
+     * @param handshakeExecutor The pool that runs the handshakes.
+     * @param counter           The name of the counter of accepted connections.
+     */
+    private static void acceptLoop(ServerSocket serverSocket, HandshakeExecutor handshakeExecutor, String counter) {
+        ServerMetrics metrics = ServerMetrics.getInstance();
+        while (!serverSocket.isClosed()) {
             try {
                 Socket sock = serverSocket.accept();
-                ClientThread thread = new ClientThread(sock, commandLineArgs, secretKey);
-                thread.start();
+                metrics.increment(counter);
+                handshakeExecutor.submit(sock);
             } catch (IOException e) {
-                LOGGER.warning(() -> "Couldn't establish client connection!");
+                if (!serverSocket.isClosed())
+                    LOGGER.warning(() -> "Couldn't establish client connection!");
             }
         }
     }
 
     /**
-     * Adds a shutdown hook to save data on program shutdown.
+     * Closes a server socket, so its acceptor stops.
      * 
-     * @param cipherKey The secret key generated when the server starts.
+     * @param serverSocket The server socket to close.
      */
-    private static void shutdownHook(Key cipherKey) {
+    private static void closeServerSocket(ServerSocket serverSocket) {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to close server socket!");
+        }
+    }
+
+    /**
+     * Creates the controller that limits the number of concurrent sessions. It
+     * stops admitting connections when the server shuts down.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     * @return The created admission controller.
+     */
+    private static AdmissionController createAdmissionController(CommandLineArgs commandLineArgs) {
+        AdmissionController admissionController = new AdmissionController(
+                commandLineArgs.getIntOption("max-sessions", 0),
+                commandLineArgs.getIntOption("admission-queue", 0),
+                commandLineArgs.getLongOption("admission-timeout", 5000),
+                commandLineArgs.getLongOption("retry-after", 5000));
+        ShutdownCoordinator.getInstance().addStopAcceptingAction(admissionController::drain);
+        return admissionController;
+    }
+
+    /**
+     * Creates the reaper that closes the sessions without traffic.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     * @return The created idle reaper, or null if idle sessions are kept open.
+     */
+    private static IdleReaper createIdleReaper(CommandLineArgs commandLineArgs) {
+        long idleTimeout = commandLineArgs.getLongOption("idle-timeout", 0);
+        return idleTimeout > 0 ? new IdleReaper(idleTimeout * 1000) : null;
+    }
+
+    /**
+     * Creates the pools that run the requests of each class of opcodes.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     * @return The created pools, or null if the requests run on the thread of
+     *         their connection.
+     */
+    private static Bulkheads createBulkheads(CommandLineArgs commandLineArgs) {
+        return commandLineArgs.getBooleanOption("bulkheads", true) ? new Bulkheads(commandLineArgs) : null;
+    }
+
+    /**
+     * Creates the limiter of the requests of each device and of each user.
+     * 
+     * @param commandLineArgs The command line arguments of the program.
+     * @return The created rate limiter, or null if there is no limit.
+     */
+    private static RateLimiter createRateLimiter(CommandLineArgs commandLineArgs) {
+        int deviceRate = commandLineArgs.getIntOption("rate-limit-device", 0);
+        int userRate = commandLineArgs.getIntOption("rate-limit-user", 0);
+        if (deviceRate <= 0 && userRate <= 0)
+            return null;
+        return new RateLimiter(deviceRate, commandLineArgs.getIntOption("rate-limit-device-burst", deviceRate * 2),
+                userRate, commandLineArgs.getIntOption("rate-limit-user-burst", userRate * 2));
+    }
+
+    /**
+     * Adds a shutdown hook that drains the sessions and then saves data on
+     * program shutdown.
+     * 
+     * @param cipherKey       The secret key generated when the server starts.
+     * @param commandLineArgs The command line arguments of the program.
+     */
+    private static void shutdownHook(Key cipherKey, CommandLineArgs commandLineArgs) {
+        long retryAfter = commandLineArgs.getLongOption("retry-after", 5000);
+        long drainTimeout = commandLineArgs.getLongOption("drain-timeout", 10000);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            DomainManager.getInstance().saveDomains(cipherKey);
-            UserManager.getInstance().saveUsers(cipherKey);
+            ShutdownCoordinator.getInstance().shutdown(retryAfter, drainTimeout, () -> {
+                DomainManager.getInstance().saveDomains(cipherKey);
+                UserManager.getInstance().saveUsers(cipherKey);
+            });
         }));
     }
 
+    /**
+     * Verifies the client details file and hashes the reference jar, so the
+     * logins only hash their nonce. A failure is only logged, since each login
+     * tries again.
+     * 
+     * @param cipherKey The secret key generated when the server starts.
+     */
+    private static void preloadAttestationReference(Key cipherKey) {
+        try {
+            AttestationReference.getInstance().preload(cipherKey);
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.warning(() -> "Couldn't load attestation reference: " + e.getMessage());
+        }
+    }
+
     /**
      * Generates a new PBE key using the password specified in the command line
      * arguments.
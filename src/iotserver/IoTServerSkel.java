@@ -1,51 +1,62 @@
 package iotserver;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
 import java.net.Socket;
-import java.net.URI;
-import java.net.URL;
-import java.nio.file.Files;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.Key;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.Signature;
-import java.security.SignatureException;
 import java.security.SignedObject;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
-import java.util.Arrays;
-import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 import common.OpCode;
-import common.Utils;
 import common.data.EncryptedData;
 import common.messages.DefaultMessages;
+import common.messages.FramedMessageChannel;
 import common.messages.Message;
+import common.messages.MessageChannel;
+import common.messages.MessageFraming;
+import common.messages.MessageInputFilter;
+import common.messages.ObjectStreamMessageChannel;
+import common.messages.ProtocolHello;
 import common.messages.types.response.*;
 import common.messages.types.request.*;
 import iotserver.managers.DeviceManager;
 import iotserver.managers.DomainManager;
+import iotserver.managers.PublicKeyCache;
 import iotserver.managers.UserManager;
-import iotserver.persistance.PersistanceUtils;
+import iotserver.network.Bulkheads;
+import iotserver.network.CryptoExecutor;
+import iotserver.network.RateLimiter;
+import iotserver.network.ResumptionTickets;
+import iotserver.twofactor.TwoFactorDispatcher;
+import iotserver.utils.AttestationReference;
 import iotserver.utils.CommandLineArgs;
 import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
 
 /**
  * @author 58180 Rodrigo Correia
@@ -54,6 +65,10 @@ import iotserver.utils.ServerLogger;
  * 
  *         Class that contains the communication layer between the server and a
  *         device.
+ *         A gateway may carry several logical devices over its connection, each
+ *         on its own channel with its own session. Channel 0 is the device that
+ *         logged in, and the other channels take its user and only go through
+ *         the remote attestation.
  */
 public class IoTServerSkel {
 
@@ -61,17 +76,46 @@ public class IoTServerSkel {
     private static final DomainManager DOMAIN_MANAGER = DomainManager.getInstance();
     private static final UserManager USER_MANAGER = UserManager.getInstance();
     private static final DeviceManager DEVICE_MANAGER = DeviceManager.getInstance();
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static final PublicKeyCache PUBLIC_KEYS = PublicKeyCache.getInstance();
+    private static final AttestationReference ATTESTATION_REFERENCE = AttestationReference.getInstance();
+    private static final ResumptionTickets RESUMPTION_TICKETS = ResumptionTickets.getInstance();
     private static final SecureRandom RANDOM = new SecureRandom();
-    private static final String EMAIL_API_URL = "https://lmpinto.eu.pythonanywhere.com/2FA?e=%s&c=%s&a=%s";
-    private static final String CLIENT_DETAILS_FILE = "clientDetails.txt";
+    private static final ReentrantLock[] CERTIFICATE_LOCKS = new ReentrantLock[64];
+
+    static {
+        for (int i = 0; i < CERTIFICATE_LOCKS.length; i++)
+            CERTIFICATE_LOCKS[i] = new ReentrantLock();
+        METRICS.registerGauge("streams.retainedBytes", ObjectStreamMessageChannel::getTotalRetainedBytes);
+        METRICS.registerGauge("streams.resets", ObjectStreamMessageChannel::getTotalResets);
+        METRICS.registerGauge("deserialization.rejected", MessageInputFilter::getTotalRejected);
+        METRICS.registerGauge("temperatures.storedBytes", Domain::getStoredTemperatureBytes);
+    }
 
     private final SessionInfo sessionInfo = new SessionInfo();
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    private final Map<Integer, SessionInfo> channels = new ConcurrentHashMap<>();
+    private final MessageChannel channel;
     private final CommandLineArgs commandLineArgs;
     private final Key secretKey;
+    private final int maxChannels;
+    private final int maxFrameBytes;
 
-    private boolean shouldClose = false;
+    private final ReentrantLock requestLock = new ReentrantLock();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock channelsLock = new ReentrantLock();
+    private final AtomicInteger waitingWriters = new AtomicInteger();
+
+    private volatile boolean shouldClose = false;
+    private int inFlight = 0;
+    private volatile boolean draining = false;
+    private long retryAfterMillis;
+    private Runnable activityListener = () -> {
+    };
+    private Executor pipelineExecutor;
+    private Semaphore pipelinePermits;
+    private Bulkheads bulkheads;
+    private RateLimiter rateLimiter;
+    private volatile ProtocolHello protocol = ProtocolHello.legacy(ProtocolHello.FEATURE_FRAMES);
 
     /**
      * Constructor of the class.
@@ -81,99 +125,556 @@ public class IoTServerSkel {
      * @throws IOException If it fails to create the input and output streams.
      */
     public IoTServerSkel(Socket socket, CommandLineArgs commandLineArgs, Key secretKey) throws IOException {
-        this.out = new ObjectOutputStream(socket.getOutputStream());
-        this.in = new ObjectInputStream(socket.getInputStream());
+        InputStream input = new BufferedInputStream(socket.getInputStream());
+        this.protocol = negotiate(socket, input);
+        this.channel = openChannel(socket, input, this.protocol, commandLineArgs);
+        this.commandLineArgs = commandLineArgs;
+        this.secretKey = secretKey;
+        this.maxChannels = commandLineArgs.getIntOption("max-channels", 256);
+        this.maxFrameBytes = commandLineArgs.getIntOption("max-frame-bytes", MessageFraming.DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Constructor of the class, for transports that read and write the messages
+     * themselves and hand them to {@link #processMessage(Message)}.
+     * 
+     * @param commandLineArgs the command line arguments of the program.
+     * @param secretKey       the secret key generated when the server starts.
+     */
+    public IoTServerSkel(CommandLineArgs commandLineArgs, Key secretKey) {
+        this.channel = null;
         this.commandLineArgs = commandLineArgs;
         this.secretKey = secretKey;
+        this.maxChannels = commandLineArgs.getIntOption("max-channels", 256);
+        this.maxFrameBytes = commandLineArgs.getIntOption("max-frame-bytes", MessageFraming.DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * Negotiates the protocol with a connected device. A device that starts
+     * with a hello gets the lowest of both versions and the features both
+     * support, while a device that starts with an object stream header or a
+     * frame is a legacy device.
+     * 
+     * @param socket The socket of the connected device.
+     * @param input  The buffered input stream of the socket.
+     * @return The protocol of the device.
+     * @throws IOException If it fails to read or answer the hello.
+     */
+    private static ProtocolHello negotiate(Socket socket, InputStream input) throws IOException {
+        input.mark(2);
+        int first = input.read();
+        int second = input.read();
+        if (first < 0 || second < 0)
+            throw new EOFException("Device closed the connection!");
+        input.reset();
+        if (ProtocolHello.isHelloStart(first, second)) {
+            ProtocolHello agreed = ProtocolHello.read(input).negotiate(supportedFeatures());
+            agreed.write(socket.getOutputStream());
+            METRICS.increment("protocol.negotiated");
+            return agreed;
+        }
+        METRICS.increment("protocol.legacy");
+        if (MessageFraming.isObjectStreamHeader(first, second))
+            return ProtocolHello.legacy(0);
+        return ProtocolHello.legacy(ProtocolHello.FEATURE_FRAMES);
+    }
+
+    /**
+     * Gets the features the server agrees to. Resumption is only offered when
+     * the tickets are enabled.
+     * 
+     * @return The feature bits supported by the server.
+     */
+    public static int supportedFeatures() {
+        if (RESUMPTION_TICKETS.isEnabled())
+            return ProtocolHello.SUPPORTED_FEATURES;
+        return ProtocolHello.SUPPORTED_FEATURES & ~ProtocolHello.FEATURE_RESUME;
+    }
+
+    /**
+     * Opens the message channel of a connected device. Devices without frames
+     * use the object stream protocol, whose output stream is reset as set by
+     * {@code --stream-reset-messages} and {@code --stream-reset-bytes}, all the
+     * others send framed messages, in the binary codec if they negotiated it.
+     * Until the device logs in, its frames are limited to
+     * {@link MessageFraming#LOGIN_MAX_FRAME_BYTES}.
+     * 
+     * @param socket          The socket of the connected device.
+     * @param input           The buffered input stream of the socket.
+     * @param protocol        The protocol of the device.
+     * @param commandLineArgs the command line arguments of the program.
+     * @return The opened channel.
+     * @throws IOException If it fails to create the input and output streams.
+     */
+    private static MessageChannel openChannel(Socket socket, InputStream input, ProtocolHello protocol,
+            CommandLineArgs commandLineArgs) throws IOException {
+        if (!protocol.hasFeature(ProtocolHello.FEATURE_FRAMES))
+            return new ObjectStreamMessageChannel(socket.getOutputStream(), input,
+                    commandLineArgs.getIntOption("stream-reset-messages",
+                            ObjectStreamMessageChannel.DEFAULT_RESET_MESSAGES),
+                    commandLineArgs.getLongOption("stream-reset-bytes", ObjectStreamMessageChannel.DEFAULT_RESET_BYTES));
+        int maxFrameBytes = Math.min(MessageFraming.LOGIN_MAX_FRAME_BYTES,
+                commandLineArgs.getIntOption("max-frame-bytes", MessageFraming.DEFAULT_MAX_FRAME_BYTES));
+        return new FramedMessageChannel(socket.getOutputStream(), input, maxFrameBytes,
+                protocol.hasFeature(ProtocolHello.FEATURE_BINARY_CODEC));
+    }
+
+    /**
+     * Gets the protocol negotiated with the device.
+     * 
+     * @return The protocol of the device.
+     */
+    public ProtocolHello getProtocol() {
+        return this.protocol;
+    }
+
+    /**
+     * Sets the protocol negotiated with the device, for transports that read
+     * the hello themselves.
+     * 
+     * @param protocol The protocol of the device.
+     */
+    public void setProtocol(ProtocolHello protocol) {
+        this.protocol = protocol;
     }
 
     /**
      * Handles a message sent to the server, calling the specific method to handle
-     * it.
+     * it. Once authenticated, the messages with a correlation id are handled on
+     * the pipeline executor, if any, and answered in completion order, while the
+     * next message is read.
      * 
      * @return True if the connection to the client should end, false otherwise.
      */
     public boolean handleMessage() {
         try {
-            Message message = (Message) this.in.readObject();
-            Message response = null;
-            switch (message.getOpCode()) {
-                case OP_CREATE:
-                    response = handleCreate(message);
-                    break;
-                case OP_ADD:
-                    response = handleAdd(message);
-                    break;
-                case OP_RD:
-                    response = handleRD(message);
-                    break;
-                case OP_ET:
-                    response = handleET(message);
-                    break;
-                case OP_EI:
-                    response = handleEI(message);
-                    break;
-                case OP_RT:
-                    response = handleRT(message);
-                    break;
-                case OP_RI:
-                    response = handleRI(message);
-                    break;
-                case OP_MD:
-                    response = handleMD(message);
-                    break;
-                case OP_DOMAIN_KEYS:
-                    response = handleDomainKeys(message);
-                    break;
-                case OP_KEY_AUTHENTICATION:
-                    response = handleKeyAuthentication(message);
-                    break;
-                case OP_SIGNED_DATA:
-                    response = handleSignedData(message);
-                    break;
-                case OP_2FA_AUTHENTICATION:
-                    response = handle2FAAuthentication(message);
-                    break;
-                case OP_REMOTE_ATTESTATION:
-                    response = handleRemoteAttestation(message);
-                    break;
-                case OP_REMOTE_ATTESTATION_HASH:
-                    response = handleRemoteAttestationHash(message);
-                    break;
-                default:
-                    LOGGER.warning(() -> "Invalid OpCode received!");
-                    break;
-            }
-            if (response != null) {
-                this.out.writeObject(response);
-                this.out.flush();
+            Message message = this.channel.readMessage();
+            this.activityListener.run();
+            SessionInfo session = getChannel(message.getChannelId());
+            if (message.getCorrelationId() != 0 && this.pipelineExecutor != null && session != null
+                    && session.getState() == SessionState.COMPLETED_AUTHENTICATED) {
+                this.pipelinePermits.acquire();
+                try {
+                    this.pipelineExecutor.execute(() -> {
+                        try {
+                            respond(message);
+                        } finally {
+                            this.pipelinePermits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    this.pipelinePermits.release();
+                    respond(message);
+                }
+            } else {
+                respond(message);
             }
         } catch (ClassNotFoundException | IOException e) {
             LOGGER.warning(() -> "Couldn't read client message!");
             closeConnection();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeConnection();
         }
         return shouldClose;
     }
 
     /**
-     * Requests to close the connection of the client and turn off is device.
+     * Processes a message and sends its response. Once the server is shutting
+     * down and no other request is in progress, the device is also told to back
+     * off.
+     * 
+     * @param message The received message from the device.
      */
-    private void closeConnection() {
-        this.shouldClose = true;
-        Device device = this.sessionInfo.getDevice();
+    private void respond(Message message) {
+        try {
+            Message response = processMessage(message);
+            if (response != null) {
+                sendMessage(response);
+            }
+            if (this.draining && !this.shouldClose && isIdle()) {
+                sendMessage(getDrainNotice());
+                closeConnection();
+            }
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Couldn't send client message!");
+            closeConnection();
+        }
+        this.activityListener.run();
+    }
+
+    /**
+     * Lets the device have several requests with a correlation id in progress at
+     * the same time.
+     * 
+     * @param executor The executor that handles those requests.
+     * @param depth    The maximum number of those requests in progress.
+     */
+    public void setPipeline(Executor executor, int depth) {
+        this.pipelineExecutor = executor;
+        this.pipelinePermits = new Semaphore(depth);
+    }
+
+    /**
+     * Runs the requests on the pools of their class of opcodes instead of on the
+     * thread of the connection.
+     * 
+     * @param bulkheads The pools of the classes of opcodes.
+     */
+    public void setBulkheads(Bulkheads bulkheads) {
+        this.bulkheads = bulkheads;
+    }
+
+    /**
+     * Limits the rate of requests of the devices of the session and of their
+     * user.
+     * 
+     * @param rateLimiter The limiter of the requests.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Processes a message sent to the server, calling the specific method to
+     * handle it on the pool of its class of opcodes, if any, and answering with
+     * {@code BUSY} if that pool is full. The requests of a device over its rate
+     * limit, or over the one of its user, are answered with {@code THROTTLED}
+     * without being handled. Once the server is shutting down, the
+     * message is answered with {@code BUSY} and the connection is closed. The response carries the
+     * correlation id and the channel id of the message.
+     * 
+     * @param message The received message from the device.
+     * @return The message that will be sent to the client as response, or null if
+     *         there is no response.
+     * @throws IOException If it fails to process the message.
+     */
+    public Message processMessage(Message message) throws IOException {
+        Message response = null;
+        boolean drained;
+        this.requestLock.lock();
+        try {
+            drained = this.draining;
+            if (!drained)
+                this.inFlight++;
+        } finally {
+            this.requestLock.unlock();
+        }
+        if (drained) {
+            closeConnection();
+            response = getDrainNotice();
+        } else {
+            try {
+                if (isThrottled(message))
+                    response = DefaultMessages.THROTTLED_MESSAGE;
+                else if (this.bulkheads == null)
+                    response = dispatchMessage(message);
+                else
+                    response = this.bulkheads.call(message.getOpCode(), () -> dispatchMessage(message));
+            } catch (RejectedExecutionException e) {
+                response = new Message(OpCode.BUSY,
+                        new BusyResponseData(this.commandLineArgs.getLongOption("retry-after", 5000)));
+            } finally {
+                this.requestLock.lock();
+                try {
+                    this.inFlight--;
+                } finally {
+                    this.requestLock.unlock();
+                }
+            }
+        }
+        if (response != null && message.getCorrelationId() != 0)
+            response = response.withCorrelationId(message.getCorrelationId());
+        if (response != null && message.getChannelId() != 0)
+            response = response.withChannelId(message.getChannelId());
+        return response;
+    }
+
+    /**
+     * Checks if a message is over the rate limit of its device or of its user.
+     * The messages sent before the device is known, heartbeats and the closing of
+     * channels are never throttled.
+     * 
+     * @param message The received message from the device.
+     * @return True if the message must be throttled, false otherwise.
+     */
+    private boolean isThrottled(Message message) {
+        if (this.rateLimiter == null || message.getOpCode() == OpCode.OP_PING
+                || message.getOpCode() == OpCode.OP_CLOSE_CHANNEL)
+            return false;
+        SessionInfo session = getChannel(message.getChannelId());
+        Device device = session == null ? null : session.getDevice();
+        return device != null && !this.rateLimiter.tryAcquire(session.getUser().getId(), device.toString());
+    }
+
+    /**
+     * Checks if no request is in progress.
+     * 
+     * @return True if no request is in progress, false otherwise.
+     */
+    private boolean isIdle() {
+        this.requestLock.lock();
+        try {
+            return this.inFlight == 0;
+        } finally {
+            this.requestLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the session of a channel, if it is open.
+     * 
+     * @param channelId The id of the channel.
+     * @return The session of the channel, or null if it is not open.
+     */
+    private SessionInfo getChannel(int channelId) {
+        return channelId == 0 ? this.sessionInfo : this.channels.get(channelId);
+    }
+
+    /**
+     * Gets the session of a channel, opening it on its first message. A channel
+     * other than 0 can only be opened once the user of channel 0 is
+     * authenticated, and starts at the remote attestation of its own device.
+     * 
+     * @param channelId The id of the channel.
+     * @return The session of the channel, or null if it can't be opened.
+     */
+    private SessionInfo openChannel(int channelId) {
+        SessionInfo session = getChannel(channelId);
+        if (session != null)
+            return session;
+        this.channelsLock.lock();
+        try {
+            session = this.channels.get(channelId);
+            if (session != null)
+                return session;
+            if (this.shouldClose || this.sessionInfo.getState().compareTo(SessionState.ATTESTATION) < 0
+                    || this.channels.size() >= this.maxChannels)
+                return null;
+            session = new SessionInfo();
+            session.setUser(this.sessionInfo.getUser());
+            session.setState(SessionState.ATTESTATION);
+            this.channels.put(channelId, session);
+        } finally {
+            this.channelsLock.unlock();
+        }
+        METRICS.increment("channels.opened");
+        return session;
+    }
+
+    /**
+     * Handles the close channel command sent by a gateway, turning off the
+     * device of the channel.
+     * 
+     * @param message The received message from the device.
+     * @return The message that will be sent to the client as response.
+     */
+    private Message handleCloseChannel(Message message) {
+        if (message.getChannelId() == 0)
+            return DefaultMessages.NOK_MESSAGE;
+        SessionInfo session = this.channels.remove(message.getChannelId());
+        if (session == null)
+            return new Message(OpCode.NOID);
+        METRICS.increment("channels.closed");
+        Device device = session.getDevice();
         if (device != null)
             device.turnOff();
+        return DefaultMessages.OK_MESSAGE;
+    }
+
+    /**
+     * Calls the specific method that handles a message, with the session of its
+     * channel.
+     * 
+     * @param message The received message from the device.
+     * @return The message that will be sent to the client as response, or null if
+     *         there is no response.
+     * @throws IOException If it fails to process the message.
+     */
+    private Message dispatchMessage(Message message) throws IOException {
+        if (message.getOpCode() == OpCode.OP_CLOSE_CHANNEL)
+            return handleCloseChannel(message);
+        SessionInfo session = openChannel(message.getChannelId());
+        if (session == null)
+            return message.getChannelId() == 0 || this.channels.size() < this.maxChannels
+                    ? DefaultMessages.SESSION_INFO_ERROR_MESSAGE
+                    : DefaultMessages.NOK_MESSAGE;
+        Message response = null;
+        switch (message.getOpCode()) {
+            case OP_CREATE:
+                response = handleCreate(message, session);
+                break;
+            case OP_ADD:
+                response = handleAdd(message, session);
+                break;
+            case OP_RD:
+                response = handleRD(message, session);
+                break;
+            case OP_ET:
+                response = handleET(message, session);
+                break;
+            case OP_ET_BATCH:
+                response = handleETBatch(message, session);
+                break;
+            case OP_EI:
+                response = handleEI(message, session);
+                break;
+            case OP_RT:
+                response = handleRT(message, session);
+                break;
+            case OP_RI:
+                response = handleRI(message, session);
+                break;
+            case OP_MD:
+                response = handleMD(message, session);
+                break;
+            case OP_DOMAIN_KEYS:
+                response = handleDomainKeys(message, session);
+                break;
+            case OP_KEY_AUTHENTICATION:
+                response = handleKeyAuthentication(message, session);
+                break;
+            case OP_SIGNED_DATA:
+                response = handleSignedData(message, session);
+                break;
+            case OP_2FA_AUTHENTICATION:
+                response = handle2FAAuthentication(message, session);
+                break;
+            case OP_REMOTE_ATTESTATION:
+                response = handleRemoteAttestation(message, session);
+                break;
+            case OP_REMOTE_ATTESTATION_HASH:
+                response = handleRemoteAttestationHash(message, session);
+                break;
+            case OP_RESUME:
+                response = handleResume(message, session);
+                break;
+            case OP_PING:
+                response = new Message(OpCode.PONG);
+                break;
+            default:
+                LOGGER.warning(() -> "Invalid OpCode received!");
+                break;
+        }
+        return response;
+    }
+
+    /**
+     * Sends a message to the device. When pipelined responses complete together,
+     * only the last one to take the channel flushes, so they leave in the same
+     * TLS records.
+     * 
+     * @param message The message to send.
+     * @throws IOException If it fails to send the message.
+     */
+    public void sendMessage(Message message) throws IOException {
+        this.waitingWriters.incrementAndGet();
+        // a lock instead of a monitor, so a virtual thread blocked on a slow
+        // device doesn't pin its carrier thread
+        this.writeLock.lock();
+        try {
+            boolean last = this.waitingWriters.decrementAndGet() == 0;
+            this.channel.bufferMessage(message);
+            if (last)
+                this.channel.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Starts draining the session, when the server is shutting down. The requests
+     * in progress, if any, still complete, and every later request is answered
+     * with {@code BUSY}.
+     * 
+     * @param retryAfterMillis The retry hint sent to the device, in milliseconds.
+     * @return True if no request is in progress, false otherwise.
+     */
+    public boolean drain(long retryAfterMillis) {
+        this.requestLock.lock();
+        try {
+            this.retryAfterMillis = retryAfterMillis;
+            this.draining = true;
+            return this.inFlight == 0;
+        } finally {
+            this.requestLock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the session is draining because the server is shutting down.
+     * 
+     * @return True if the session is draining, false otherwise.
+     */
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    /**
+     * Gets the message that tells the device to back off while the server is
+     * shutting down.
+     * 
+     * @return The {@code BUSY} message with the retry hint.
+     */
+    public Message getDrainNotice() {
+        return new Message(OpCode.BUSY, new BusyResponseData(this.retryAfterMillis));
+    }
+
+    /**
+     * Sets the listener called each time a message is read or answered, so the
+     * idle time of the session can be tracked.
+     * 
+     * @param activityListener The listener to call on traffic.
+     */
+    public void setActivityListener(Runnable activityListener) {
+        this.activityListener = activityListener;
+    }
+
+    /**
+     * Checks if the connection of the client was requested to close.
+     * 
+     * @return True if the connection should close, false otherwise.
+     */
+    public boolean isClosing() {
+        return shouldClose;
+    }
+
+    /**
+     * Requests to close the connection of the client and turn off its devices,
+     * on every channel. Only the first call turns off the devices, so a session
+     * closed by the idle reaper doesn't turn off a device again once a new
+     * session took it.
+     */
+    public void closeConnection() {
+        this.channelsLock.lock();
+        try {
+            if (this.shouldClose)
+                return;
+            this.shouldClose = true;
+            Device device = this.sessionInfo.getDevice();
+            if (device != null)
+                device.turnOff();
+            for (SessionInfo session : this.channels.values()) {
+                device = session.getDevice();
+                if (device != null)
+                    device.turnOff();
+            }
+            this.channels.clear();
+        } finally {
+            this.channelsLock.unlock();
+        }
     }
 
     /**
      * Handles the key authentication with the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      * @throws IOException If it fails to read the message.
      */
-    private Message handleKeyAuthentication(Message message) throws IOException {
-        if (this.sessionInfo.getState() != SessionState.KEY_AUTHENTICATION) {
+    private Message handleKeyAuthentication(Message message, SessionInfo session) throws IOException {
+        if (session.getState() != SessionState.KEY_AUTHENTICATION) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof KeyAuthenticationRequestData)) {
@@ -183,13 +684,13 @@ public class IoTServerSkel {
         String userId = data.getUserId();
         long nonce = RANDOM.nextLong();
         boolean newUser = !USER_MANAGER.userExists(userId);
-        this.sessionInfo.setNonce(nonce);
-        this.sessionInfo.setNewUser(newUser);
-        this.sessionInfo.setState(SessionState.KEY_AUTHENTICATION_STEP2);
+        session.setNonce(nonce);
+        session.setNewUser(newUser);
+        session.setState(SessionState.KEY_AUTHENTICATION_STEP2);
         if (!newUser)
-            this.sessionInfo.setUser(USER_MANAGER.getUser(userId));
+            session.setUser(USER_MANAGER.getUser(userId));
         else
-            this.sessionInfo.setUser(new User(userId, null));
+            session.setUser(new User(userId, null));
         return new Message(OpCode.OK, new KeyAuthenticationResponseData(newUser, nonce));
     }
 
@@ -197,20 +698,22 @@ public class IoTServerSkel {
      * Handles the signed data validation with the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleSignedData(Message message) {
-        if (this.sessionInfo.getState() != SessionState.KEY_AUTHENTICATION_STEP2) {
+    private Message handleSignedData(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.KEY_AUTHENTICATION_STEP2) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof KeyAuthenticationSignedData)) {
             return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
         }
         KeyAuthenticationSignedData data = (KeyAuthenticationSignedData) message.getData();
-        Certificate certificate;
-        File cerFile = new File("certs", this.sessionInfo.getUser().getId() + ".cer");
-        if (this.sessionInfo.isNewUser()) {
-            certificate = data.getCertificate();
+        PublicKey publicKey;
+        File cerFile = new File("certs", session.getUser().getId() + ".cer");
+        if (session.isNewUser()) {
+            Certificate certificate = data.getCertificate();
+            publicKey = certificate.getPublicKey();
             try {
                 saveCertificateToFile(certificate, cerFile);
             } catch (CertificateEncodingException | IOException e) {
@@ -220,7 +723,7 @@ public class IoTServerSkel {
             }
         } else {
             try {
-                certificate = loadCertificateFromFile(cerFile);
+                publicKey = PUBLIC_KEYS.getPublicKey(session.getUser(), cerFile, this::loadCertificateFromFile);
             } catch (CertificateException | IOException e) {
                 LOGGER.warning(() -> "Failed to load user certificate file!");
                 closeConnection();
@@ -229,28 +732,30 @@ public class IoTServerSkel {
         }
         SignedObject so = data.getSignedObject();
         try {
-            if (so.verify(certificate.getPublicKey(), Signature.getInstance(so.getAlgorithm()))) {
-                this.sessionInfo.setState(SessionState.TWO_FACTOR_AUTHENTICATION);
-                if (this.sessionInfo.isNewUser()) {
-                    User user = USER_MANAGER.createUser(this.sessionInfo.getUser().getId(), cerFile);
-                    if (user != null)
-                        this.sessionInfo.setUser(user);
-                    else
+            boolean verified = CryptoExecutor.getInstance()
+                    .call(() -> so.verify(publicKey, Signature.getInstance(so.getAlgorithm())));
+            if (verified) {
+                session.setState(SessionState.TWO_FACTOR_AUTHENTICATION);
+                if (session.isNewUser()) {
+                    User user = USER_MANAGER.createUser(session.getUser().getId(), cerFile);
+                    if (user != null) {
+                        session.setUser(user);
+                        PUBLIC_KEYS.putPublicKey(user, cerFile, publicKey);
+                    } else
                         return DefaultMessages.NOK_MESSAGE;
                 }
                 String c2fa = String.format("%05d", RANDOM.nextInt(100000));
-                URL url = URI.create(String.format(EMAIL_API_URL, this.sessionInfo.getUser().getId(), c2fa,
-                        commandLineArgs.getApiKey())).toURL();
-                int status;
-                do {
-                    HttpURLConnection http = (HttpURLConnection) url.openConnection();
-                    http.setRequestMethod("GET");
-                    status = http.getResponseCode();
-                } while (status != 200);
-                this.sessionInfo.setC2fa(c2fa);
+                // the code is delivered in the background, since the device
+                // only needs it once the user types it
+                if (!TwoFactorDispatcher.getInstance().dispatch(session.getUser().getId(), c2fa)) {
+                    LOGGER.warning(() -> "2FA delivery unavailable, rejecting login of " + session.getUser().getId());
+                    session.setState(SessionState.KEY_AUTHENTICATION);
+                    return DefaultMessages.NOK_MESSAGE;
+                }
+                session.setC2fa(c2fa);
                 return DefaultMessages.OK_MESSAGE;
             }
-        } catch (SignatureException | InvalidKeyException | NoSuchAlgorithmException | IOException e) {
+        } catch (GeneralSecurityException | IOException e) {
             LOGGER.warning(() -> "Failed to read user signature");
         }
         return DefaultMessages.NOK_MESSAGE;
@@ -260,19 +765,20 @@ public class IoTServerSkel {
      * Handles the 2FA authentication with the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handle2FAAuthentication(Message message) {
-        if (this.sessionInfo.getState() != SessionState.TWO_FACTOR_AUTHENTICATION) {
+    private Message handle2FAAuthentication(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.TWO_FACTOR_AUTHENTICATION) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof FA2AuthenticationRequestData)) {
             return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
         }
         FA2AuthenticationRequestData data = (FA2AuthenticationRequestData) message.getData();
-        if (!data.getUserCode().equals(this.sessionInfo.getC2fa()))
+        if (!data.getUserCode().equals(session.getC2fa()))
             return DefaultMessages.NOK_MESSAGE;
-        this.sessionInfo.setState(SessionState.ATTESTATION);
+        session.setState(SessionState.ATTESTATION);
         return DefaultMessages.OK_MESSAGE;
     }
 
@@ -280,33 +786,24 @@ public class IoTServerSkel {
      * Handles the remote attestation with the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleRemoteAttestation(Message message) {
-        if (this.sessionInfo.getState() != SessionState.ATTESTATION) {
+    private Message handleRemoteAttestation(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.ATTESTATION) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof RemoteAttestationRequestData)) {
             return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
         }
         RemoteAttestationRequestData data = (RemoteAttestationRequestData) message.getData();
-        String userIdDevId = this.sessionInfo.getUser().getId() + ":" + data.getDevId();
-        Device device;
-        synchronized (DEVICE_MANAGER) {
-            if (DEVICE_MANAGER.deviceExists(userIdDevId)) {
-                device = DEVICE_MANAGER.getDevice(userIdDevId);
-                LOGGER.info(() -> "Device " + device.toString() + " already exists checking if it is on!");
-                if (device.isOn())
-                    return DefaultMessages.NOK_MESSAGE;
-            } else {
-                device = DEVICE_MANAGER.createDevice(this.sessionInfo.getUser(), data.getDevId());
-            }
-            this.sessionInfo.setDevice(device);
-            device.turnOn();
-        }
-        this.sessionInfo.setState(SessionState.ATTESTATION_STEP2);
+        Device device = DEVICE_MANAGER.turnOnDevice(session.getUser(), data.getDevId());
+        if (device == null)
+            return DefaultMessages.NOK_MESSAGE;
+        session.setDevice(device);
+        session.setState(SessionState.ATTESTATION_STEP2);
         long nonce = RANDOM.nextLong();
-        this.sessionInfo.setNonce(nonce);
+        session.setNonce(nonce);
         return new Message(OpCode.OK, new RemoteAttestationResponseData(nonce));
     }
 
@@ -314,76 +811,115 @@ public class IoTServerSkel {
      * Handles the hash validation with the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleRemoteAttestationHash(Message message) {
-        if (this.sessionInfo.getState() != SessionState.ATTESTATION_STEP2) {
+    private Message handleRemoteAttestationHash(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.ATTESTATION_STEP2) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof RemoteAttestationRequestDataStep2)) {
             return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
         }
         RemoteAttestationRequestDataStep2 data = (RemoteAttestationRequestDataStep2) message.getData();
-        String filePath = "";
-        String hmacBase64;
-        try (Scanner sc = new Scanner(new File(CLIENT_DETAILS_FILE))) {
-            filePath = sc.nextLine();
-            hmacBase64 = sc.nextLine();
-        } catch (FileNotFoundException e) {
-            LOGGER.warning(() -> "Client details file not found!");
-            closeConnection();
-            return null;
-        }
-        byte[] filePathBytes = filePath.getBytes();
-        byte[] fileHmac = Base64.getDecoder().decode(hmacBase64);
-        try {
-            byte[] calculatedHmac = PersistanceUtils.hmac(filePathBytes, this.secretKey);
-            if (!Arrays.equals(calculatedHmac, fileHmac)) {
-                LOGGER.severe(() -> "Invalid " + CLIENT_DETAILS_FILE + " hmac!");
-                closeConnection();
-                return null;
-            }
-        } catch (InvalidKeyException | NoSuchAlgorithmException e) {
-            LOGGER.warning(() -> "Couldn't calculate hmac of " + CLIENT_DETAILS_FILE + " file!");
-            closeConnection();
-            return null;
-        }
-        byte[] deviceHash = data.getDevHash();
-        byte[] fileBytes = new byte[0];
-        try {
-            fileBytes = Files.readAllBytes(new File(filePath).toPath());
-        } catch (IOException e) {
-            LOGGER.warning(() -> "Couldn't read client details file!");
-            closeConnection();
-            return null;
-        }
-        byte[] nonceBytes = Utils.longToBytes(this.sessionInfo.getNonce());
-        byte[] concatBytes;
         byte[] hash;
         try {
-            concatBytes = Utils.concatByteArrays(fileBytes, nonceBytes);
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            hash = digest.digest(concatBytes);
-            if (Arrays.equals(deviceHash, hash)) {
-                this.sessionInfo.setState(SessionState.COMPLETED_AUTHENTICATED);
-                return DefaultMessages.OK_MESSAGE;
-            }
-        } catch (IOException | NoSuchAlgorithmException e) {
-            LOGGER.warning(() -> "Couldn't get hash!");
+            hash = CryptoExecutor.getInstance()
+                    .call(() -> ATTESTATION_REFERENCE.expectedHash(session.getNonce(), this.secretKey));
+        } catch (IOException | GeneralSecurityException e) {
+            LOGGER.severe(() -> "Couldn't get attestation hash: " + e.getMessage());
             closeConnection();
             return null;
         }
+        if (MessageDigest.isEqual(data.getDevHash(), hash)) {
+            session.setState(SessionState.COMPLETED_AUTHENTICATED);
+            METRICS.increment("logins.full");
+            return completedLogin(session);
+        }
         return DefaultMessages.NOK_MESSAGE;
     }
 
+    /**
+     * Handles the resumption of a login with a ticket given to the device by
+     * an earlier login, going straight to the authenticated state.
+     * 
+     * @param message The received message from the device.
+     * @param session The session of the channel of the message.
+     * @return The message that will be sent to the client as response.
+     */
+    private Message handleResume(Message message, SessionInfo session) {
+        if (session != this.sessionInfo || session.getState() != SessionState.KEY_AUTHENTICATION) {
+            return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
+        }
+        if (!(message.getData() instanceof ResumeRequestData)) {
+            return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
+        }
+        ResumptionTickets.Grant grant = RESUMPTION_TICKETS.redeem(((ResumeRequestData) message.getData()).getTicket());
+        if (grant == null)
+            return DefaultMessages.NOK_MESSAGE;
+        User user = USER_MANAGER.getUser(grant.getUserId());
+        if (user == null)
+            return DefaultMessages.NOK_MESSAGE;
+        Device device = DEVICE_MANAGER.turnOnDevice(user, grant.getDeviceId());
+        if (device == null)
+            return DefaultMessages.NOK_MESSAGE;
+        session.setUser(user);
+        session.setDevice(device);
+        session.setState(SessionState.COMPLETED_AUTHENTICATED);
+        METRICS.increment("logins.resumed");
+        LOGGER.info(() -> "Resumed login of " + device);
+        return completedLogin(session);
+    }
+
+    /**
+     * Checks if the device of the connection completed its login.
+     * 
+     * @return True if the device is authenticated, false otherwise.
+     */
+    public boolean isAuthenticated() {
+        return this.sessionInfo.getState() == SessionState.COMPLETED_AUTHENTICATED;
+    }
+
+    /**
+     * Gets the maximum size of a request frame, which is only
+     * {@link MessageFraming#LOGIN_MAX_FRAME_BYTES} until the device logs in.
+     * 
+     * @return The maximum size of a request frame.
+     */
+    public int getMaxFrameBytes() {
+        return isAuthenticated() ? this.maxFrameBytes
+                : Math.min(MessageFraming.LOGIN_MAX_FRAME_BYTES, this.maxFrameBytes);
+    }
+
+    /**
+     * Builds the answer to a completed login, with a new resumption ticket if
+     * the device of the connection negotiated them. Once the device of the
+     * connection logs in, its frames may take the whole
+     * {@code --max-frame-bytes}.
+     * 
+     * @param session The session that completed its login.
+     * @return The message that will be sent to the client as response.
+     */
+    private Message completedLogin(SessionInfo session) {
+        if (session == this.sessionInfo && this.channel != null)
+            this.channel.setMaxFrameBytes(this.maxFrameBytes);
+        ProtocolHello protocol = getProtocol();
+        if (session != this.sessionInfo || protocol == null || !protocol.hasFeature(ProtocolHello.FEATURE_RESUME)
+                || !RESUMPTION_TICKETS.isEnabled())
+            return DefaultMessages.OK_MESSAGE;
+        byte[] ticket = RESUMPTION_TICKETS.issue(session.getUser().getId(), session.getDevice().getId());
+        return new Message(OpCode.OK, new ResumptionTicketData(ticket, RESUMPTION_TICKETS.getWindowMillis()));
+    }
+
     /**
      * Handles the create command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleCreate(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleCreate(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof CreateDomainMessageData)) {
@@ -391,7 +927,7 @@ public class IoTServerSkel {
         }
         CreateDomainMessageData data = (CreateDomainMessageData) message.getData();
         String domainName = data.getDomainName();
-        Domain result = DOMAIN_MANAGER.createDomain(domainName, this.sessionInfo.getUser());
+        Domain result = DOMAIN_MANAGER.createDomain(domainName, session.getUser());
         return result == null ? DefaultMessages.NOK_MESSAGE : DefaultMessages.OK_MESSAGE;
     }
 
@@ -399,10 +935,11 @@ public class IoTServerSkel {
      * Handles the add command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleAdd(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleAdd(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof AddUserMessageData)) {
@@ -413,7 +950,7 @@ public class IoTServerSkel {
             return new Message(OpCode.NODM);
         }
         Domain domain = DOMAIN_MANAGER.getDomain(data.getDomainName());
-        if (!domain.getOwner().equals(this.sessionInfo.getUser())) {
+        if (!domain.getOwner().equals(session.getUser())) {
             return new Message(OpCode.NOPERM);
         }
         User user = USER_MANAGER.getUser(data.getUserId());
@@ -428,10 +965,11 @@ public class IoTServerSkel {
      * Handles the register device command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleRD(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleRD(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof RDMessageData)) {
@@ -442,10 +980,10 @@ public class IoTServerSkel {
             return new Message(OpCode.NODM);
         }
         Domain domain = DOMAIN_MANAGER.getDomain(data.getDomainName());
-        if (!domain.containsUser(this.sessionInfo.getUser())) {
+        if (!domain.containsUser(session.getUser())) {
             return new Message(OpCode.NOPERM);
         }
-        boolean result = domain.addDevice(this.sessionInfo.getDevice());
+        boolean result = domain.addDevice(session.getDevice());
         return result ? DefaultMessages.OK_MESSAGE : new Message(OpCode.ALREADY_ADDED);
     }
 
@@ -453,10 +991,11 @@ public class IoTServerSkel {
      * Handles the send temperature command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleET(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleET(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof ETMessageData)) {
@@ -466,7 +1005,7 @@ public class IoTServerSkel {
         Map<String, EncryptedData> temperatures = data.getDomainsTemperatures();
         temperatures.forEach((domainName, temperature) -> {
             Domain domain = DOMAIN_MANAGER.getDomain(domainName);
-            Device device = this.sessionInfo.getDevice();
+            Device device = session.getDevice();
             if (domain != null && domain.containsDevice(device)) {
                 domain.updateDeviceTemp(device, temperature);
             }
@@ -474,14 +1013,42 @@ public class IoTServerSkel {
         return DefaultMessages.OK_MESSAGE;
     }
 
+    /**
+     * Handles the send temperature batch command sent by the device. Each domain
+     * is looked up once and updated once for all its readings.
+     * 
+     * @param message The received message from the device.
+     * @param session The session of the channel of the message.
+     * @return The message that will be sent to the client as response.
+     */
+    private Message handleETBatch(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+            return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
+        }
+        if (!(message.getData() instanceof ETBatchMessageData)) {
+            return DefaultMessages.DATA_TYPE_ERROR_MESSAGE;
+        }
+        ETBatchMessageData data = (ETBatchMessageData) message.getData();
+        Device device = session.getDevice();
+        data.getDomainsReadings().forEach((domainName, readings) -> {
+            Domain domain = DOMAIN_MANAGER.getDomain(domainName);
+            if (domain != null && !readings.isEmpty() && domain.containsDevice(device)) {
+                domain.updateDeviceTemps(device, readings);
+                METRICS.add("telemetry.readings", readings.size());
+            }
+        });
+        return DefaultMessages.OK_MESSAGE;
+    }
+
     /**
      * Handles the send image command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleEI(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleEI(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof EIMessageData)) {
@@ -491,7 +1058,7 @@ public class IoTServerSkel {
         Map<String, EncryptedData> images = data.getImages();
         images.forEach((domainName, image) -> {
             Domain domain = DOMAIN_MANAGER.getDomain(domainName);
-            Device device = this.sessionInfo.getDevice();
+            Device device = session.getDevice();
             if (domain != null && domain.containsDevice(device)) {
                 domain.updateDeviceImage(device, image);
             }
@@ -503,10 +1070,11 @@ public class IoTServerSkel {
      * Handles the receive temperature command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleRT(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleRT(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof RTMessageData)) {
@@ -517,7 +1085,7 @@ public class IoTServerSkel {
         if (domain == null) {
             return new Message(OpCode.NODM);
         }
-        if (!domain.containsUser(this.sessionInfo.getUser())) {
+        if (!domain.containsUser(session.getUser())) {
             return new Message(OpCode.NOPERM);
         }
         Map<String, EncryptedData> deviceTemperatures = new HashMap<>();
@@ -529,17 +1097,18 @@ public class IoTServerSkel {
         if (deviceTemperatures.isEmpty())
             return new Message(OpCode.NODATA);
         return new Message(OpCode.OK,
-                new RTResponseData(deviceTemperatures, domain.getUserDomainKey(this.sessionInfo.getUser())));
+                new RTResponseData(deviceTemperatures, domain.getUserDomainKey(session.getUser())));
     }
 
     /**
      * Handles the receive image command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleRI(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleRI(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
         if (!(message.getData() instanceof RIMessageData))
@@ -550,13 +1119,13 @@ public class IoTServerSkel {
             return new Message(OpCode.NOID);
         }
         boolean foundDomain = false;
-        for (Domain domain : DOMAIN_MANAGER.getUsersDomains(this.sessionInfo.getUser())) {
+        for (Domain domain : DOMAIN_MANAGER.getUsersDomains(session.getUser())) {
             if (domain.containsDevice(device)) {
                 foundDomain = true;
                 EncryptedData imageData = domain.getDeviceImage(device);
                 if (imageData != null) {
                     RIResponseData responseData = new RIResponseData(imageData,
-                            domain.getUserDomainKey(this.sessionInfo.getUser()));
+                            domain.getUserDomainKey(session.getUser()));
                     return new Message(OpCode.OK, responseData);
                 }
             }
@@ -568,13 +1137,14 @@ public class IoTServerSkel {
      * Handles the mydomains command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleMD(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleMD(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
-        List<Domain> domains = DOMAIN_MANAGER.getDeviceDomains(this.sessionInfo.getDevice());
+        List<Domain> domains = DOMAIN_MANAGER.getDeviceDomains(session.getDevice());
         List<String> domainNames = domains.stream().map(d -> d.getName()).collect(Collectors.toList());
         return new Message(OpCode.OK, new MDResponseMessageData(domainNames));
     }
@@ -583,16 +1153,17 @@ public class IoTServerSkel {
      * Handles the domain keys command sent by the device.
      * 
      * @param message The received message from the device.
+     * @param session The session of the channel of the message.
      * @return The message that will be sent to the client as response.
      */
-    private Message handleDomainKeys(Message message) {
-        if (this.sessionInfo.getState() != SessionState.COMPLETED_AUTHENTICATED) {
+    private Message handleDomainKeys(Message message, SessionInfo session) {
+        if (session.getState() != SessionState.COMPLETED_AUTHENTICATED) {
             return DefaultMessages.SESSION_INFO_ERROR_MESSAGE;
         }
-        List<Domain> domains = DOMAIN_MANAGER.getDeviceDomains(this.sessionInfo.getDevice());
+        List<Domain> domains = DOMAIN_MANAGER.getDeviceDomains(session.getDevice());
         Map<String, byte[]> domainsKeys = new HashMap<>();
         for (Domain domain : domains) {
-            byte[] domainKey = domain.getUserDomainKey(this.sessionInfo.getUser());
+            byte[] domainKey = domain.getUserDomainKey(session.getUser());
             domainsKeys.put(domain.getName(), domainKey);
         }
         return new Message(OpCode.OK, new DomainKeysResponseData(domainsKeys));
@@ -609,11 +1180,15 @@ public class IoTServerSkel {
      */
     private Certificate loadCertificateFromFile(File file)
             throws CertificateException, FileNotFoundException, IOException {
-        synchronized (file) {
+        ReentrantLock lock = certificateLock(file);
+        lock.lock();
+        try {
             CertificateFactory cf = CertificateFactory.getInstance("X.509");
             try (FileInputStream in = new FileInputStream(file)) {
                 return cf.generateCertificate(in);
             }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -628,12 +1203,28 @@ public class IoTServerSkel {
      */
     private void saveCertificateToFile(Certificate certificate, File file)
             throws FileNotFoundException, IOException, CertificateEncodingException {
-        synchronized (file) {
+        ReentrantLock lock = certificateLock(file);
+        lock.lock();
+        try {
             file.getParentFile().mkdirs();
             byte[] encoded = certificate.getEncoded();
             try (FileOutputStream out = new FileOutputStream(file)) {
                 out.write(encoded);
             }
+        } finally {
+            lock.unlock();
         }
     }
+
+    /**
+     * Returns the lock that guards a certificate file. Locks are shared by path,
+     * unlike the {@code File} instances, which are created on each request.
+     * 
+     * @param file The certificate file.
+     * @return The lock of the file.
+     */
+    private static ReentrantLock certificateLock(File file) {
+        int index = Math.floorMod(file.getPath().hashCode(), CERTIFICATE_LOCKS.length);
+        return CERTIFICATE_LOCKS[index];
+    }
 }
@@ -3,6 +3,8 @@ package iotserver;
 import java.io.File;
 import java.util.Objects;
 
+import iotserver.managers.PublicKeyCache;
+
 /**
  * @author 58180 Rodrigo Correia
  * @author 58188 Laura Cunha
@@ -14,6 +16,7 @@ public class User {
 
     private final String id;
     private final File certificateFile;
+    private volatile PublicKeyCache.Entry publicKeyEntry;
 
     /**
      * Constructor of the class.
@@ -44,6 +47,25 @@ public class User {
         return certificateFile;
     }
 
+    /**
+     * Returns the cached public key of this user's certificate.
+     * 
+     * @return The cached public key, or null if it isn't cached.
+     */
+    public PublicKeyCache.Entry getPublicKeyEntry() {
+        return publicKeyEntry;
+    }
+
+    /**
+     * Sets the cached public key of this user's certificate. Only the
+     * {@link PublicKeyCache} sets it, so it can bound the cached keys.
+     * 
+     * @param publicKeyEntry The cached public key, or null to drop it.
+     */
+    public void setPublicKeyEntry(PublicKeyCache.Entry publicKeyEntry) {
+        this.publicKeyEntry = publicKeyEntry;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this)
@@ -1,7 +1,8 @@
 package iotserver.managers;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import iotserver.Device;
@@ -21,7 +22,8 @@ public class DeviceManager {
     private static Logger LOGGER = ServerLogger.getLogger(DeviceManager.class.getSimpleName());
     private static DeviceManager instance;
 
-    private final Map<String, Device> devices = new HashMap<>();
+    private final Map<String, Device> devices = new ConcurrentHashMap<>();
+    private final ReentrantLock activationLock = new ReentrantLock();
 
     /**
      * Private constructor of the class.
@@ -73,4 +75,32 @@ public class DeviceManager {
         LOGGER.info(() -> "Created device " + device);
         return device;
     }
+
+    /**
+     * Turns on the device of a user, creating it if it doesn't exist yet. The
+     * check and the activation are done atomically, using a lock instead of a
+     * monitor so that virtual threads waiting on it don't pin their carrier.
+     * 
+     * @param user the user of the device
+     * @param id   the id of the device
+     * @return the device turned on, or null if the device was already on
+     */
+    public Device turnOnDevice(User user, int id) {
+        String userIdDevId = user.getId() + ":" + id;
+        this.activationLock.lock();
+        try {
+            Device device = this.devices.get(userIdDevId);
+            if (device == null) {
+                device = createDevice(user, id);
+            } else {
+                LOGGER.info(() -> "Device " + userIdDevId + " already exists checking if it is on!");
+                if (device.isOn())
+                    return null;
+            }
+            device.turnOn();
+            return device;
+        } finally {
+            this.activationLock.unlock();
+        }
+    }
 }
@@ -0,0 +1,231 @@
+package iotserver.managers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import iotserver.User;
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that keeps the public keys of the certificates of
+ *         the users, so a login only checks the modification time of the
+ *         certificate file instead of parsing it again. Each key is attached to
+ *         its user, and the cache only bounds how many users keep one, dropping
+ *         the least recently used.
+ */
+public class PublicKeyCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private static final Logger LOGGER = ServerLogger.getLogger(PublicKeyCache.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static PublicKeyCache instance;
+
+    private final Map<String, User> users = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    /**
+     * Class that represents the public key of a user, with the modification
+     * time and the length of the certificate file it was read from.
+     */
+    public static final class Entry {
+
+        private final PublicKey publicKey;
+        private final long lastModified;
+        private final long length;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param publicKey    the public key of the certificate
+         * @param lastModified the modification time of the certificate file
+         * @param length       the length of the certificate file
+         */
+        private Entry(PublicKey publicKey, long lastModified, long length) {
+            this.publicKey = publicKey;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Checks if the certificate file is still the one the key was read from.
+         *
+         * @param attributes the attributes of the certificate file
+         * @return true if the file wasn't changed, false otherwise
+         */
+        private boolean matches(BasicFileAttributes attributes) {
+            return attributes.lastModifiedTime().toMillis() == this.lastModified
+                    && attributes.size() == this.length;
+        }
+    }
+
+    /**
+     * Interface that represents the loader of a certificate file.
+     */
+    @FunctionalInterface
+    public interface CertificateLoader {
+
+        /**
+         * Loads a certificate from a file.
+         *
+         * @param file the certificate file
+         * @return the loaded certificate
+         * @throws CertificateException if the file is not a valid certificate
+         * @throws IOException          if it fails to read the file
+         */
+        Certificate load(File file) throws CertificateException, IOException;
+    }
+
+    /**
+     * Private constructor of the class.
+     */
+    private PublicKeyCache() {
+        METRICS.registerGauge("publicKeys.cached", this::size);
+    }
+
+    /**
+     * Gets the instance of the PublicKeyCache
+     *
+     * @return the instance of the PublicKeyCache
+     */
+    public static synchronized PublicKeyCache getInstance() {
+        if (instance == null)
+            instance = new PublicKeyCache();
+        return instance;
+    }
+
+    /**
+     * Sets the maximum number of users that keep their public key, dropping
+     * the keys above it.
+     *
+     * @param maxEntries the maximum number of keys, 0 to disable the cache
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.lock.lock();
+        try {
+            trim();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the public key of a user, reading the certificate file only if the
+     * key isn't cached or the file changed since it was read.
+     *
+     * @param user   the user
+     * @param file   the certificate file of the user
+     * @param loader the loader of the certificate file
+     * @return the public key of the user
+     * @throws CertificateException if the file is not a valid certificate
+     * @throws IOException          if it fails to read the file
+     */
+    public PublicKey getPublicKey(User user, File file, CertificateLoader loader)
+            throws CertificateException, IOException {
+        Entry entry = user.getPublicKeyEntry();
+        // a single stat of the file, instead of one for each attribute
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (entry != null && entry.matches(attributes)) {
+            METRICS.increment("publicKeys.hits");
+            this.lock.lock();
+            try {
+                this.users.get(user.getId());
+            } finally {
+                this.lock.unlock();
+            }
+            return entry.publicKey;
+        }
+        METRICS.increment("publicKeys.misses");
+        if (entry != null)
+            LOGGER.info(() -> "Certificate of " + user.getId() + " changed, reloading its public key");
+        // the stamp is read before the file, so a change while loading is seen
+        // by the next login
+        PublicKey publicKey = loader.load(file).getPublicKey();
+        put(user, new Entry(publicKey, attributes.lastModifiedTime().toMillis(), attributes.size()));
+        return publicKey;
+    }
+
+    /**
+     * Caches the public key of a certificate just saved to a file.
+     *
+     * @param user      the user
+     * @param file      the certificate file of the user
+     * @param publicKey the public key of the certificate
+     */
+    public void putPublicKey(User user, File file, PublicKey publicKey) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            put(user, new Entry(publicKey, attributes.lastModifiedTime().toMillis(), attributes.size()));
+        } catch (IOException e) {
+            // the key is read from the file on the next login instead
+            LOGGER.warning(() -> "Failed to read the attributes of " + file.getPath());
+        }
+    }
+
+    /**
+     * Attaches a public key to a user, dropping the least recently used keys
+     * above the maximum.
+     *
+     * @param user  the user
+     * @param entry the public key of the user
+     */
+    private void put(User user, Entry entry) {
+        if (this.maxEntries == 0)
+            return;
+        this.lock.lock();
+        try {
+            user.setPublicKeyEntry(entry);
+            User previous = this.users.put(user.getId(), user);
+            // a new user object with the same id replaces the old one
+            if (previous != null && previous != user)
+                previous.setPublicKeyEntry(null);
+            trim();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the least recently used keys above the maximum. Must be called
+     * with the lock of the cache.
+     */
+    private void trim() {
+        Iterator<User> iterator = this.users.values().iterator();
+        while (this.users.size() > this.maxEntries && iterator.hasNext()) {
+            iterator.next().setPublicKeyEntry(null);
+            iterator.remove();
+            METRICS.increment("publicKeys.evictions");
+        }
+    }
+
+    /**
+     * Gets the number of users that keep their public key.
+     *
+     * @return the number of cached keys
+     */
+    private long size() {
+        this.lock.lock();
+        try {
+            return this.users.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package iotserver.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that decides which connections become sessions. Up to a
+ *         maximum number of sessions run at the same time, a bounded number of
+ *         connections wait in a queue for a free slot, and the remaining ones
+ *         are rejected at once with a hint of when to retry.
+ */
+public class AdmissionController {
+
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    private final int maxSessions;
+    private final int maxQueued;
+    private final long queueTimeoutNanos;
+    private final long retryAfterMillis;
+    private final Queue<Waiting> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int active = 0;
+    private boolean draining = false;
+
+    /**
+     * Interface of a connection that asks to be admitted.
+     */
+    public interface Candidate {
+
+        /**
+         * Starts the session of the connection. Must not block.
+         */
+        void start();
+
+        /**
+         * Rejects the connection. Must not block for long.
+         *
+         * @param retryAfterMillis The time the device should wait before
+         *                         reconnecting, in milliseconds.
+         */
+        void reject(long retryAfterMillis);
+    }
+
+    /**
+     * Class that represents a connection waiting in the queue.
+     */
+    private static class Waiting {
+
+        private final Candidate candidate;
+        private final long enqueuedAt;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param candidate  The waiting connection.
+         * @param enqueuedAt The time it entered the queue, in nanoseconds.
+         */
+        private Waiting(Candidate candidate, long enqueuedAt) {
+            this.candidate = candidate;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Constructor of the class.
+     *
+     * @param maxSessions        The maximum number of concurrent sessions, or 0
+     *                           for no limit.
+     * @param maxQueued          The maximum number of connections waiting for a
+     *                           free slot.
+     * @param queueTimeoutMillis The maximum time a connection waits in the queue,
+     *                           in milliseconds.
+     * @param retryAfterMillis   The retry hint sent to rejected connections, in
+     *                           milliseconds.
+     */
+    public AdmissionController(int maxSessions, int maxQueued, long queueTimeoutMillis, long retryAfterMillis) {
+        this.maxSessions = maxSessions > 0 ? maxSessions : Integer.MAX_VALUE;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.retryAfterMillis = retryAfterMillis;
+        METRICS.registerGauge("connections.active", this::getActive);
+        METRICS.registerGauge("connections.queued", this::getQueued);
+        if (this.maxQueued > 0)
+            startSweeper(Math.max(10, queueTimeoutMillis / 4));
+    }
+
+    /**
+     * Asks for a connection to be admitted. The connection is started at once if
+     * there is a free slot, queued if the queue has room, and rejected otherwise
+     * or if the server is shutting down.
+     *
+     * @param candidate The connection asking to be admitted.
+     */
+    public void admit(Candidate candidate) {
+        boolean start = false;
+        this.lock.lock();
+        try {
+            if (!this.draining && this.active < this.maxSessions) {
+                this.active++;
+                start = true;
+            } else if (!this.draining && this.queue.size() < this.maxQueued) {
+                this.queue.add(new Waiting(candidate, System.nanoTime()));
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (start)
+            start(candidate);
+        else
+            reject(candidate);
+    }
+
+    /**
+     * Gives back the slot of a session that ended, handing it to the next
+     * connection in the queue, if any.
+     */
+    public void release() {
+        List<Candidate> expired = new ArrayList<>();
+        Candidate next = null;
+        long now = System.nanoTime();
+        this.lock.lock();
+        try {
+            Waiting waiting;
+            while ((waiting = this.queue.poll()) != null) {
+                if (now - waiting.enqueuedAt > this.queueTimeoutNanos) {
+                    expired.add(waiting.candidate);
+                } else {
+                    next = waiting.candidate;
+                    break;
+                }
+            }
+            if (next == null)
+                this.active--;
+        } finally {
+            this.lock.unlock();
+        }
+        expired.forEach(this::reject);
+        if (next != null)
+            start(next);
+    }
+
+    /**
+     * Stops admitting connections, when the server is shutting down. The queued
+     * connections and every later one are rejected.
+     */
+    public void drain() {
+        List<Candidate> queued = new ArrayList<>();
+        this.lock.lock();
+        try {
+            this.draining = true;
+            Waiting waiting;
+            while ((waiting = this.queue.poll()) != null)
+                queued.add(waiting.candidate);
+        } finally {
+            this.lock.unlock();
+        }
+        queued.forEach(this::reject);
+    }
+
+    /**
+     * Gets the number of running sessions.
+     *
+     * @return The number of running sessions.
+     */
+    public long getActive() {
+        this.lock.lock();
+        try {
+            return this.active;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of connections waiting in the queue.
+     *
+     * @return The number of queued connections.
+     */
+    public long getQueued() {
+        this.lock.lock();
+        try {
+            return this.queue.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts an admitted connection, giving its slot back if it fails to start.
+     *
+     * @param candidate The admitted connection.
+     */
+    private void start(Candidate candidate) {
+        METRICS.increment("connections.admitted");
+        try {
+            candidate.start();
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Rejects a connection.
+     *
+     * @param candidate The rejected connection.
+     */
+    private void reject(Candidate candidate) {
+        METRICS.increment("connections.rejected");
+        candidate.reject(this.retryAfterMillis);
+    }
+
+    /**
+     * Starts the task that rejects the connections that waited in the queue for
+     * too long.
+     *
+     * @param periodMillis The period of the task, in milliseconds.
+     */
+    private void startSweeper(long periodMillis) {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admission-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(this::rejectExpired, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rejects the connections that waited in the queue for too long.
+     */
+    private void rejectExpired() {
+        List<Candidate> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        this.lock.lock();
+        try {
+            Waiting waiting;
+            while ((waiting = this.queue.peek()) != null && now - waiting.enqueuedAt > this.queueTimeoutNanos) {
+                this.queue.poll();
+                expired.add(waiting.candidate);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        expired.forEach(this::reject);
+    }
+}
@@ -0,0 +1,172 @@
+package iotserver.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.OpCode;
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that runs the requests of each class of opcodes on its own
+ *         bounded pool, so a burst of one class, such as image uploads, can't
+ *         take the threads and the memory the other classes need. The opcodes
+ *         without a class, such as {@code OP_PING}, run on the calling thread.
+ */
+public class Bulkheads {
+
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    private final Map<OpCode, Bulkhead> dispatchTable = new EnumMap<>(OpCode.class);
+
+    /**
+     * Interface of the handler of a request.
+     *
+     * @param <T> The type of the response.
+     */
+    public interface Handler<T> {
+
+        /**
+         * Handles the request.
+         *
+         * @return The response to the request.
+         * @throws IOException If it fails to handle the request.
+         */
+        T handle() throws IOException;
+    }
+
+    /**
+     * Class that represents the pool of a class of opcodes.
+     */
+    private static class Bulkhead {
+
+        private final String name;
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param name      The name of the class of opcodes.
+         * @param threads   The number of threads of the pool.
+         * @param queueSize The number of requests that may wait for a thread.
+         */
+        private Bulkhead(String name, int threads, int queueSize) {
+            AtomicInteger counter = new AtomicInteger();
+            this.name = "bulkheads." + name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    runnable -> new Thread(runnable, name + "-" + counter.incrementAndGet()));
+            METRICS.registerGauge(this.name + ".queued", () -> this.executor.getQueue().size());
+            METRICS.registerGauge(this.name + ".active", this.executor::getActiveCount);
+        }
+    }
+
+    /**
+     * Constructor of the class. Each class of opcodes gets a pool sized from the
+     * {@code --bulkhead-<class>-threads} and {@code --bulkhead-<class>-queue}
+     * options.
+     *
+     * @param commandLineArgs The command line arguments of the program.
+     */
+    public Bulkheads(CommandLineArgs commandLineArgs) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Bulkhead auth = create(commandLineArgs, "auth", processors * 2, 256);
+        Bulkhead telemetry = create(commandLineArgs, "telemetry", processors, 1024);
+        Bulkhead image = create(commandLineArgs, "image", Math.max(1, processors / 2), 64);
+        Bulkhead query = create(commandLineArgs, "query", processors, 256);
+        route(auth, OpCode.OP_KEY_AUTHENTICATION, OpCode.OP_SIGNED_DATA, OpCode.OP_2FA_AUTHENTICATION,
+                OpCode.OP_REMOTE_ATTESTATION, OpCode.OP_REMOTE_ATTESTATION_HASH, OpCode.OP_RESUME);
+        route(telemetry, OpCode.OP_ET, OpCode.OP_ET_BATCH, OpCode.OP_DOMAIN_KEYS);
+        route(image, OpCode.OP_EI, OpCode.OP_RI);
+        route(query, OpCode.OP_CREATE, OpCode.OP_ADD, OpCode.OP_RD, OpCode.OP_RT, OpCode.OP_MD);
+    }
+
+    /**
+     * Creates the pool of a class of opcodes.
+     *
+     * @param commandLineArgs  The command line arguments of the program.
+     * @param name             The name of the class of opcodes.
+     * @param defaultThreads   The default number of threads of the pool.
+     * @param defaultQueueSize The default number of requests that may wait.
+     * @return The created pool.
+     */
+    private static Bulkhead create(CommandLineArgs commandLineArgs, String name, int defaultThreads,
+            int defaultQueueSize) {
+        int threads = Math.max(1, commandLineArgs.getIntOption("bulkhead-" + name + "-threads", defaultThreads));
+        int queueSize = Math.max(1, commandLineArgs.getIntOption("bulkhead-" + name + "-queue", defaultQueueSize));
+        return new Bulkhead(name, threads, queueSize);
+    }
+
+    /**
+     * Sends some opcodes to a pool.
+     *
+     * @param bulkhead The pool of the opcodes.
+     * @param opCodes  The opcodes.
+     */
+    private void route(Bulkhead bulkhead, OpCode... opCodes) {
+        for (OpCode opCode : opCodes)
+            this.dispatchTable.put(opCode, bulkhead);
+    }
+
+    /**
+     * Handles a request on the pool of its opcode and waits for its response.
+     * The time the request waited for a thread and its whole latency are
+     * recorded in the metrics of the pool.
+     *
+     * @param <T>     The type of the response.
+     * @param opCode  The opcode of the request.
+     * @param handler The handler of the request.
+     * @return The response to the request.
+     * @throws IOException                If it fails to handle the request.
+     * @throws RejectedExecutionException If the pool of the opcode is full.
+     */
+    public <T> T call(OpCode opCode, Handler<T> handler) throws IOException {
+        Bulkhead bulkhead = this.dispatchTable.get(opCode);
+        if (bulkhead == null)
+            return handler.handle();
+        long enqueued = System.nanoTime();
+        Future<T> future;
+        try {
+            future = bulkhead.executor.submit(() -> {
+                METRICS.recordTime(bulkhead.name + ".wait", System.nanoTime() - enqueued);
+                try {
+                    return handler.handle();
+                } finally {
+                    METRICS.recordTime(bulkhead.name, System.nanoTime() - enqueued);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            METRICS.increment(bulkhead.name + ".rejected");
+            throw e;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the request!");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package iotserver.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that runs the CPU heavy cryptography of the logins,
+ *         such as the verification of the signatures and the attestation
+ *         hashes, on its own bounded pool. A wave of reconnecting devices can
+ *         then take at most the threads of this pool, while the threads of the
+ *         connections and of the other requests keep serving data. A task whose
+ *         pool is full is rejected, and its request answered with {@code BUSY}.
+ */
+public class CryptoExecutor {
+
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static CryptoExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Interface of a cryptographic task.
+     *
+     * @param <T> The type of the result.
+     */
+    public interface Task<T> {
+
+        /**
+         * Runs the task.
+         *
+         * @return The result of the task.
+         * @throws GeneralSecurityException If the cryptographic operation fails.
+         * @throws IOException              If it fails to read its input.
+         */
+        T run() throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Constructor of the class.
+     *
+     * @param threads   The number of threads of the pool, 0 to run the tasks on
+     *                  the calling thread.
+     * @param queueSize The number of tasks that may wait for a thread.
+     */
+    private CryptoExecutor(int threads, int queueSize) {
+        if (threads <= 0) {
+            this.executor = null;
+            return;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+                    Thread thread = new Thread(runnable, "crypto-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        METRICS.registerGauge("crypto.queued", () -> this.executor.getQueue().size());
+        METRICS.registerGauge("crypto.active", this.executor::getActiveCount);
+    }
+
+    /**
+     * Creates the pool of the server from the {@code --crypto-threads} and
+     * {@code --crypto-queue} options.
+     *
+     * @param commandLineArgs The command line arguments of the program.
+     */
+    public static synchronized void init(CommandLineArgs commandLineArgs) {
+        instance = new CryptoExecutor(
+                commandLineArgs.getIntOption("crypto-threads", Runtime.getRuntime().availableProcessors()),
+                commandLineArgs.getIntOption("crypto-queue", 1024));
+    }
+
+    /**
+     * Gets the instance of the CryptoExecutor, with the default sizes if it
+     * wasn't created from the options.
+     *
+     * @return the instance of the CryptoExecutor
+     */
+    public static synchronized CryptoExecutor getInstance() {
+        if (instance == null)
+            instance = new CryptoExecutor(Runtime.getRuntime().availableProcessors(), 1024);
+        return instance;
+    }
+
+    /**
+     * Runs a task on the pool and waits for its result. The time the task
+     * waited for a thread and its whole latency are recorded in the
+     * {@code crypto.wait} and {@code crypto} metrics.
+     *
+     * @param <T>  The type of the result.
+     * @param task The task to run.
+     * @return The result of the task.
+     * @throws GeneralSecurityException   If the cryptographic operation fails.
+     * @throws IOException                If it fails to read its input or is
+     *                                    interrupted.
+     * @throws RejectedExecutionException If the pool is full.
+     */
+    public <T> T call(Task<T> task) throws GeneralSecurityException, IOException {
+        if (this.executor == null)
+            return task.run();
+        long enqueued = System.nanoTime();
+        Future<T> future;
+        try {
+            future = this.executor.submit(() -> {
+                METRICS.recordTime("crypto.wait", System.nanoTime() - enqueued);
+                try {
+                    return task.run();
+                } finally {
+                    METRICS.recordTime("crypto", System.nanoTime() - enqueued);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            METRICS.increment("crypto.rejected");
+            throw e;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the crypto pool!");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
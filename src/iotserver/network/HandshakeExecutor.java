@@ -0,0 +1,150 @@
+package iotserver.network;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocket;
+
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that runs the TLS handshake and the stream setup of the
+ *         accepted sockets on a dedicated pool, so the accept loop never waits
+ *         for a device. Each setup has a deadline, after which its socket is
+ *         closed.
+ */
+public class HandshakeExecutor {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(HandshakeExecutor.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService watchdog;
+    private final long timeoutMillis;
+    private final AdmissionController admissionController;
+    private final SessionFactory sessionFactory;
+
+    /**
+     * Interface of the factory that builds the session of a socket once its
+     * handshake is done.
+     */
+    public interface SessionFactory {
+
+        /**
+         * Sets up the streams of a socket and builds its session.
+         *
+         * @param socket The socket with a completed handshake.
+         * @return The session of the socket, ready to be admitted.
+         * @throws IOException If it fails to set up the streams.
+         */
+        AdmissionController.Candidate create(Socket socket) throws IOException;
+    }
+
+    /**
+     * Constructor of the class.
+     *
+     * @param threads             The number of handshake threads.
+     * @param queueSize           The number of accepted sockets that may wait for
+     *                            a handshake thread.
+     * @param timeoutMillis       The deadline of each handshake and stream setup,
+     *                            in milliseconds.
+     * @param admissionController The controller that admits the sessions.
+     * @param sessionFactory      The factory of the sessions.
+     */
+    public HandshakeExecutor(int threads, int queueSize, long timeoutMillis,
+            AdmissionController admissionController, SessionFactory sessionFactory) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> new Thread(runnable, "handshake-" + counter.incrementAndGet()));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handshake-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timeoutMillis = timeoutMillis;
+        this.admissionController = admissionController;
+        this.sessionFactory = sessionFactory;
+        METRICS.registerGauge("handshakes.queued", () -> this.executor.getQueue().size());
+    }
+
+    /**
+     * Hands an accepted socket to the handshake pool. The socket is closed at
+     * once if the pool is full.
+     *
+     * @param socket The accepted socket.
+     */
+    public void submit(Socket socket) {
+        try {
+            this.executor.execute(() -> handshake(socket));
+        } catch (RejectedExecutionException e) {
+            METRICS.increment("handshakes.dropped");
+            close(socket);
+        }
+    }
+
+    /**
+     * Runs the handshake and the stream setup of a socket and asks for its
+     * session to be admitted.
+     *
+     * @param socket The accepted socket.
+     */
+    private void handshake(Socket socket) {
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> deadline = this.watchdog.schedule(() -> {
+            timedOut.set(true);
+            close(socket);
+        }, this.timeoutMillis, TimeUnit.MILLISECONDS);
+        AdmissionController.Candidate session;
+        try {
+            if (socket instanceof SSLSocket) {
+                SSLSocket sslSocket = (SSLSocket) socket;
+                sslSocket.startHandshake();
+                TlsSessions.recordHandshake(sslSocket.getSession(), startMillis);
+            }
+            session = this.sessionFactory.create(socket);
+        } catch (IOException e) {
+            deadline.cancel(false);
+            METRICS.increment(timedOut.get() ? "handshakes.timeouts" : "handshakes.failed");
+            LOGGER.warning(() -> "Couldn't establish client connection!");
+            close(socket);
+            return;
+        }
+        if (!deadline.cancel(false)) {
+            METRICS.increment("handshakes.timeouts");
+            close(socket);
+            return;
+        }
+        METRICS.recordTime("handshakes", System.nanoTime() - start);
+        this.admissionController.admit(session);
+    }
+
+    /**
+     * Closes a socket, ignoring errors.
+     *
+     * @param socket The socket to close.
+     */
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package iotserver.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that closes the sessions without traffic for longer than the
+ *         idle timeout. The sessions are kept in a hashed timer wheel that a
+ *         single thread advances one slot per tick. Touching a session only
+ *         updates its last activity, and the session is moved to a later slot
+ *         when the wheel reaches it, so traffic never takes a lock.
+ */
+public class IdleReaper {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(IdleReaper.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static final int WHEEL_SLOTS = 512;
+
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private long currentTick = 0;
+
+    /**
+     * Class that represents a session registered in the reaper.
+     */
+    public class Entry {
+
+        private final Runnable onIdle;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean cancelled = false;
+        private long deadlineTick;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param onIdle The action that closes the session.
+         */
+        private Entry(Runnable onIdle) {
+            this.onIdle = onIdle;
+        }
+
+        /**
+         * Records traffic on the session.
+         */
+        public void touch() {
+            this.lastActivity = System.nanoTime();
+        }
+
+        /**
+         * Removes the session from the reaper, once it is closed.
+         */
+        public void cancel() {
+            this.cancelled = true;
+        }
+    }
+
+    /**
+     * Constructor of the class. Starts the thread that advances the wheel.
+     *
+     * @param timeoutMillis The time without traffic after which a session is
+     *                      closed, in milliseconds.
+     */
+    public IdleReaper(long timeoutMillis) {
+        this.timeoutNanos = timeoutMillis * 1_000_000;
+        long tickMillis = Math.max(10, Math.min(1000, timeoutMillis / 8));
+        this.tickNanos = tickMillis * 1_000_000;
+        for (int i = 0; i < WHEEL_SLOTS; i++)
+            this.wheel.add(new ArrayList<>());
+        Thread thread = new Thread(this::run, "idle-reaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Registers a session in the reaper.
+     *
+     * @param onIdle The action that closes the session when it is idle.
+     * @return The entry of the session, to touch on traffic and cancel on close.
+     */
+    public Entry register(Runnable onIdle) {
+        Entry entry = new Entry(onIdle);
+        this.lock.lock();
+        try {
+            schedule(entry);
+        } finally {
+            this.lock.unlock();
+        }
+        return entry;
+    }
+
+    /**
+     * Puts an entry in the slot of the tick when it expires, if it stays idle.
+     * Must be called with the lock held.
+     *
+     * @param entry The entry to schedule.
+     */
+    private void schedule(Entry entry) {
+        long deadline = entry.lastActivity + this.timeoutNanos - this.startNanos;
+        entry.deadlineTick = Math.max(this.currentTick + 1, (deadline + this.tickNanos - 1) / this.tickNanos);
+        this.wheel.get((int) (entry.deadlineTick % WHEEL_SLOTS)).add(entry);
+    }
+
+    /**
+     * Advances the wheel one slot per tick, until the program ends.
+     */
+    private void run() {
+        while (true) {
+            long nextTick = this.startNanos + (this.currentTick + 1) * this.tickNanos;
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1_000_000, (int) (sleepNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (Entry entry : advance())
+                reap(entry);
+        }
+    }
+
+    /**
+     * Advances the wheel to the next tick and collects the idle entries of its
+     * slot. The entries touched since they were scheduled move to a later slot.
+     *
+     * @return The entries that are idle.
+     */
+    private List<Entry> advance() {
+        List<Entry> idle = new ArrayList<>();
+        this.lock.lock();
+        try {
+            this.currentTick++;
+            List<Entry> slot = this.wheel.get((int) (this.currentTick % WHEEL_SLOTS));
+            List<Entry> due = new ArrayList<>();
+            slot.removeIf(entry -> {
+                if (entry.cancelled)
+                    return true;
+                if (entry.deadlineTick > this.currentTick)
+                    return false;
+                due.add(entry);
+                return true;
+            });
+            long now = System.nanoTime();
+            for (Entry entry : due) {
+                if (now - entry.lastActivity >= this.timeoutNanos)
+                    idle.add(entry);
+                else
+                    schedule(entry);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        return idle;
+    }
+
+    /**
+     * Closes an idle session.
+     *
+     * @param entry The entry of the idle session.
+     */
+    private void reap(Entry entry) {
+        entry.cancelled = true;
+        METRICS.increment("sessions.reaped");
+        LOGGER.info(() -> "Closing idle session!");
+        try {
+            entry.onIdle.run();
+        } catch (RuntimeException e) {
+            LOGGER.warning(() -> "Failed to close idle session: " + e.getMessage());
+        }
+    }
+}
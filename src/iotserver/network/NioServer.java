@@ -0,0 +1,228 @@
+package iotserver.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.Key;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import iotserver.IoTServerSkel;
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerLogger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that represents a non-blocking server, where a single selector
+ *         thread does all the network and TLS work and the complete framed
+ *         requests are handed to a pool of workers.
+ */
+public class NioServer {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(NioServer.class.getSimpleName());
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final SSLContext sslContext;
+    private final ExecutorService workers;
+    private final AdmissionController admissionController;
+    private final CommandLineArgs commandLineArgs;
+    private final Key secretKey;
+    private final int maxFrameBytes;
+    private final long handshakeTimeoutMillis;
+    private final IdleReaper idleReaper;
+    private final Bulkheads bulkheads;
+    private final RateLimiter rateLimiter;
+    private final ScheduledExecutorService watchdog;
+    private final Queue<TlsConnection> updates = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean accepting = true;
+
+    /**
+     * Constructor of the class, binding the server to its port.
+     *
+     * @param port                   The port to listen on.
+     * @param sslContext             The TLS context of the server.
+     * @param workers                The pool that processes the requests.
+     * @param admission              The controller that admits the sessions.
+     * @param commandLineArgs        The command line arguments of the program.
+     * @param secretKey              The secret key generated when the server
+     *                               starts.
+     * @param maxFrameBytes          The maximum size of a request frame.
+     * @param handshakeTimeoutMillis The deadline of each handshake, in
+     *                               milliseconds.
+     * @param idleReaper             The reaper that closes the idle
+     *                               connections, or null to keep them open.
+     * @param bulkheads              The pools that run the requests, or null
+     *                               to run them on the workers.
+     * @param rateLimiter            The limiter of the requests of each device
+     *                               and user, or null for no limit.
+     * @throws IOException If it fails to open the server channel.
+     */
+    public NioServer(int port, SSLContext sslContext, ExecutorService workers, AdmissionController admission,
+            CommandLineArgs commandLineArgs, Key secretKey, int maxFrameBytes, long handshakeTimeoutMillis,
+            IdleReaper idleReaper, Bulkheads bulkheads, RateLimiter rateLimiter) throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.sslContext = sslContext;
+        this.workers = workers;
+        this.admissionController = admission;
+        this.commandLineArgs = commandLineArgs;
+        this.secretKey = secretKey;
+        this.maxFrameBytes = maxFrameBytes;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.idleReaper = idleReaper;
+        this.bulkheads = bulkheads;
+        this.rateLimiter = rateLimiter;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handshake-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the selector loop of the server, until the program ends. The loop
+     * keeps serving the connected devices after the server stops accepting new
+     * ones.
+     */
+    public void run() {
+        LOGGER.info(() -> "Server started! (nio transport)");
+        while (true) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                LOGGER.severe(() -> "Selector failed!");
+                return;
+            }
+            if (!this.accepting && this.serverChannel.isOpen()) {
+                try {
+                    this.serverChannel.close();
+                } catch (IOException e) {
+                    LOGGER.warning(() -> "Failed to close server channel!");
+                }
+            }
+            TlsConnection updated;
+            while ((updated = this.updates.poll()) != null)
+                updated.process();
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                TlsConnection connection = (TlsConnection) key.attachment();
+                if (key.isReadable())
+                    connection.read();
+                if (key.isValid() && key.isWritable())
+                    connection.process();
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection and registers it on the selector.
+     */
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = this.serverChannel.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SSLEngine engine = this.sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.beginHandshake();
+            SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+            IoTServerSkel serverSkel = new IoTServerSkel(this.commandLineArgs, this.secretKey);
+            if (this.bulkheads != null)
+                serverSkel.setBulkheads(this.bulkheads);
+            if (this.rateLimiter != null)
+                serverSkel.setRateLimiter(this.rateLimiter);
+            TlsConnection connection = new TlsConnection(this, channel, engine, key, serverSkel, this.maxFrameBytes);
+            key.attach(connection);
+            this.watchdog.schedule(connection::expireHandshake, this.handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+            LOGGER.info(() -> "IoTDevice connected!");
+            this.admissionController.admit(connection);
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Couldn't establish client connection!");
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new connections, when the server is shutting down. The
+     * listener is closed on the selector thread.
+     */
+    public void stopAccepting() {
+        this.accepting = false;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Asks the selector thread to process a connection again, after a worker
+     * changed its state.
+     *
+     * @param connection The connection to process.
+     */
+    void requestUpdate(TlsConnection connection) {
+        this.updates.add(connection);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Returns the controller that admits the sessions.
+     *
+     * @return The admission controller.
+     */
+    AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Returns the reaper that closes the idle connections.
+     *
+     * @return The idle reaper, or null if idle connections are kept open.
+     */
+    IdleReaper getIdleReaper() {
+        return idleReaper;
+    }
+
+    /**
+     * Returns the pool that processes the requests and the TLS delegated tasks.
+     *
+     * @return The worker pool.
+     */
+    ExecutorService getWorkers() {
+        return workers;
+    }
+}
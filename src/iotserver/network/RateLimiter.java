@@ -0,0 +1,123 @@
+package iotserver.network;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that limits the rate of requests of each device and of each
+ *         user with token buckets. A bucket holds up to a burst of tokens and
+ *         refills at a steady rate, and each request takes one token from the
+ *         bucket of its device and one from the bucket of its user.
+ */
+public class RateLimiter {
+
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    private final int deviceRate;
+    private final int deviceBurst;
+    private final int userRate;
+    private final int userBurst;
+    private final Map<String, TokenBucket> deviceBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Class that represents a token bucket, refilled when it is used.
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Constructor of the class. The bucket starts full.
+         *
+         * @param ratePerSecond The number of tokens added per second.
+         * @param capacity      The maximum number of tokens.
+         */
+        private TokenBucket(int ratePerSecond, int capacity) {
+            this.tokensPerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        /**
+         * Takes a token from the bucket, if there is one.
+         *
+         * @return True if a token was taken, false otherwise.
+         */
+        private synchronized boolean tryTake() {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+            this.lastRefill = now;
+            if (this.tokens < 1)
+                return false;
+            this.tokens--;
+            return true;
+        }
+
+        /**
+         * Gives back a token taken for a request that was not allowed.
+         */
+        private synchronized void giveBack() {
+            this.tokens = Math.min(this.capacity, this.tokens + 1);
+        }
+    }
+
+    /**
+     * Constructor of the class.
+     *
+     * @param deviceRate  The requests per second allowed to each device, or 0
+     *                    for no limit.
+     * @param deviceBurst The requests a device may send at once.
+     * @param userRate    The requests per second allowed to all the devices of
+     *                    each user, or 0 for no limit.
+     * @param userBurst   The requests the devices of a user may send at once.
+     */
+    public RateLimiter(int deviceRate, int deviceBurst, int userRate, int userBurst) {
+        this.deviceRate = deviceRate;
+        this.deviceBurst = Math.max(1, deviceBurst);
+        this.userRate = userRate;
+        this.userBurst = Math.max(1, userBurst);
+        METRICS.registerRate("requests.throttled.device");
+        METRICS.registerRate("requests.throttled.user");
+    }
+
+    /**
+     * Checks if a request of a device is within the limits of the device and of
+     * its user, taking a token from each bucket if it is.
+     *
+     * @param userId   The id of the user of the device.
+     * @param deviceId The id of the device, as {@code <user-id>:<dev-id>}.
+     * @return True if the request is allowed, false if it must be throttled.
+     */
+    public boolean tryAcquire(String userId, String deviceId) {
+        TokenBucket device = null;
+        if (this.deviceRate > 0) {
+            device = this.deviceBuckets.computeIfAbsent(deviceId,
+                    id -> new TokenBucket(this.deviceRate, this.deviceBurst));
+            if (!device.tryTake()) {
+                METRICS.increment("requests.throttled.device");
+                return false;
+            }
+        }
+        if (this.userRate > 0) {
+            TokenBucket user = this.userBuckets.computeIfAbsent(userId,
+                    id -> new TokenBucket(this.userRate, this.userBurst));
+            if (!user.tryTake()) {
+                if (device != null)
+                    device.giveBack();
+                METRICS.increment("requests.throttled.user");
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,237 @@
+package iotserver.network;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that issues and redeems the resumption tickets of
+ *         the devices. A ticket is given to a device once it completes a full
+ *         login, and lets it reconnect within a window straight to the
+ *         authenticated state, skipping the signature, the 2FA and the
+ *         attestation. A ticket holds a random id, its expiry, the user and
+ *         the device it was issued to, followed by an HMAC-SHA256 with a key
+ *         kept only in memory, so the tickets end with the server. Each ticket
+ *         can be redeemed once, and a redeemed ticket is replaced by a new one.
+ */
+public class ResumptionTickets {
+
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final byte VERSION = 1;
+    private static final int ID_BYTES = 16;
+    private static final int MAC_BYTES = 32;
+    private static final int MAX_USER_ID_BYTES = 1024;
+    private static ResumptionTickets instance;
+
+    private final SecretKeySpec key;
+    private final Map<String, Long> redeemed = new ConcurrentHashMap<>();
+    private volatile long windowMillis;
+    private volatile long lastPrune;
+
+    /**
+     * Class that represents the user and the device a ticket was issued to.
+     */
+    public static final class Grant {
+
+        private final String userId;
+        private final int deviceId;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param userId   The id of the user.
+         * @param deviceId The id of the device.
+         */
+        private Grant(String userId, int deviceId) {
+            this.userId = userId;
+            this.deviceId = deviceId;
+        }
+
+        /**
+         * Gets the id of the user of the ticket.
+         *
+         * @return The id of the user.
+         */
+        public String getUserId() {
+            return this.userId;
+        }
+
+        /**
+         * Gets the id of the device of the ticket.
+         *
+         * @return The id of the device.
+         */
+        public int getDeviceId() {
+            return this.deviceId;
+        }
+    }
+
+    /**
+     * Private constructor of the class.
+     */
+    private ResumptionTickets() {
+        byte[] keyBytes = new byte[32];
+        RANDOM.nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, "HmacSHA256");
+        METRICS.registerGauge("resume.redeemedTickets", this.redeemed::size);
+    }
+
+    /**
+     * Gets the instance of the ResumptionTickets
+     *
+     * @return the instance of the ResumptionTickets
+     */
+    public static synchronized ResumptionTickets getInstance() {
+        if (instance == null)
+            instance = new ResumptionTickets();
+        return instance;
+    }
+
+    /**
+     * Sets how long a ticket may be redeemed after it was issued.
+     *
+     * @param windowSeconds The lifetime of the tickets, 0 to issue none.
+     */
+    public void setWindow(long windowSeconds) {
+        this.windowMillis = TimeUnit.SECONDS.toMillis(Math.max(0, windowSeconds));
+    }
+
+    /**
+     * Gets how long a ticket may be redeemed after it was issued.
+     *
+     * @return The lifetime of the tickets, in milliseconds.
+     */
+    public long getWindowMillis() {
+        return this.windowMillis;
+    }
+
+    /**
+     * Checks if tickets are issued.
+     *
+     * @return True if the tickets are enabled, false otherwise.
+     */
+    public boolean isEnabled() {
+        return this.windowMillis > 0;
+    }
+
+    /**
+     * Issues a ticket to a device that completed a login.
+     *
+     * @param userId   The id of the user of the device.
+     * @param deviceId The id of the device.
+     * @return The ticket.
+     */
+    public byte[] issue(String userId, int deviceId) {
+        byte[] user = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] id = new byte[ID_BYTES];
+        RANDOM.nextBytes(id);
+        ByteBuffer ticket = ByteBuffer.allocate(1 + ID_BYTES + Long.BYTES + Integer.BYTES + 2 + user.length
+                + MAC_BYTES);
+        ticket.put(VERSION).put(id).putLong(System.currentTimeMillis() + this.windowMillis).putInt(deviceId)
+                .putShort((short) user.length).put(user);
+        ticket.put(mac(ticket.array(), ticket.position()));
+        METRICS.increment("resume.issued");
+        return ticket.array();
+    }
+
+    /**
+     * Redeems a ticket, checking its MAC, its expiry and that it wasn't
+     * redeemed before.
+     *
+     * @param ticket The ticket sent by the device.
+     * @return The user and the device of the ticket, or null if the ticket is
+     *         not valid.
+     */
+    public Grant redeem(byte[] ticket) {
+        if (!isEnabled() || ticket == null || ticket.length < 1 + ID_BYTES + Long.BYTES + Integer.BYTES + 2
+                + MAC_BYTES)
+            return reject();
+        int macStart = ticket.length - MAC_BYTES;
+        byte[] mac = new byte[MAC_BYTES];
+        System.arraycopy(ticket, macStart, mac, 0, MAC_BYTES);
+        if (!MessageDigest.isEqual(mac(ticket, macStart), mac))
+            return reject();
+        ByteBuffer in = ByteBuffer.wrap(ticket, 0, macStart);
+        try {
+            if (in.get() != VERSION)
+                return reject();
+            byte[] id = new byte[ID_BYTES];
+            in.get(id);
+            long expiresAt = in.getLong();
+            int deviceId = in.getInt();
+            int userLength = in.getShort() & 0xFFFF;
+            if (userLength > MAX_USER_ID_BYTES || userLength != in.remaining())
+                return reject();
+            byte[] user = new byte[userLength];
+            in.get(user);
+            long now = System.currentTimeMillis();
+            if (now > expiresAt)
+                return reject();
+            prune(now);
+            if (this.redeemed.putIfAbsent(Base64.getEncoder().encodeToString(id), expiresAt) != null)
+                return reject();
+            return new Grant(new String(user, StandardCharsets.UTF_8), deviceId);
+        } catch (BufferUnderflowException e) {
+            return reject();
+        }
+    }
+
+    /**
+     * Computes the MAC of the start of a ticket.
+     *
+     * @param ticket The bytes of the ticket.
+     * @param length The number of bytes covered by the MAC.
+     * @return The MAC.
+     */
+    private byte[] mac(byte[] ticket, int length) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(this.key);
+            mac.update(ticket, 0, length);
+            return mac.doFinal();
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * Forgets the redeemed tickets that expired, at most once a second. An
+     * expired ticket is rejected by its expiry, so it needs no entry.
+     *
+     * @param now The current time, in milliseconds.
+     */
+    private void prune(long now) {
+        if (now - this.lastPrune < 1000)
+            return;
+        this.lastPrune = now;
+        this.redeemed.values().removeIf(expiresAt -> expiresAt < now);
+    }
+
+    /**
+     * Counts a rejected ticket.
+     *
+     * @return Null, as the grant of the ticket.
+     */
+    private static Grant reject() {
+        METRICS.increment("resume.rejected");
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+package iotserver.network;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Interface of a running session, as seen by the
+ *         {@link ShutdownCoordinator} while the server shuts down.
+ */
+public interface ServerConnection {
+
+    /**
+     * Tells the device to back off. An idle session is answered with
+     * {@code BUSY} and closed at once, a busy one completes its request first.
+     * Either way, the session unregisters itself once it is closed.
+     *
+     * @param retryAfterMillis The time the device should wait before
+     *                         reconnecting, in milliseconds.
+     */
+    void drain(long retryAfterMillis);
+
+    /**
+     * Closes the session, whatever its state.
+     */
+    void forceClose();
+}
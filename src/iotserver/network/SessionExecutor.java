@@ -0,0 +1,86 @@
+package iotserver.network;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import iotserver.utils.ServerLogger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that runs the client sessions of the server, either on platform
+ *         threads or on virtual threads.
+ */
+public class SessionExecutor implements Executor {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(SessionExecutor.class.getSimpleName());
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param useVirtualThreads True to run each session on a virtual thread,
+     *                          false to use platform threads.
+     */
+    public SessionExecutor(boolean useVirtualThreads) {
+        ExecutorService virtualExecutor = useVirtualThreads ? createVirtualExecutor() : null;
+        this.virtual = virtualExecutor != null;
+        this.executor = this.virtual ? virtualExecutor : createPlatformExecutor();
+    }
+
+    /**
+     * Runs a session, or a pipelined request of a session.
+     *
+     * @param session The session or request to run.
+     */
+    @Override
+    public void execute(Runnable session) {
+        this.executor.execute(session);
+    }
+
+    /**
+     * Checks if the sessions are running on virtual threads.
+     *
+     * @return True if the sessions run on virtual threads, false otherwise.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Creates an executor that starts a new platform thread for each session.
+     *
+     * @return The created executor.
+     */
+    private static ExecutorService createPlatformExecutor() {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = runnable -> new Thread(runnable, "client-session-" + counter.incrementAndGet());
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each session. The
+     * executor is looked up at runtime so the server still runs on JVMs without
+     * virtual threads.
+     *
+     * @return The created executor or null if the JVM has no virtual threads.
+     */
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning(() -> "Virtual threads are not available on this JVM, using platform threads!");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package iotserver.network;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import iotserver.utils.ServerLogger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that keeps the running sessions and shuts the
+ *         server down in phases: it stops accepting connections, tells the
+ *         connected devices to back off, waits for the requests in progress up
+ *         to a deadline, closes the remaining sessions and only then persists
+ *         the data.
+ */
+public class ShutdownCoordinator {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(ShutdownCoordinator.class.getSimpleName());
+    private static ShutdownCoordinator instance;
+
+    private final Set<ServerConnection> connections = ConcurrentHashMap.newKeySet();
+    private final List<Runnable> stopAcceptingActions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Private constructor of the class.
+     */
+    private ShutdownCoordinator() {
+    }
+
+    /**
+     * Gets the instance of the ShutdownCoordinator
+     *
+     * @return the instance of the ShutdownCoordinator
+     */
+    public static synchronized ShutdownCoordinator getInstance() {
+        if (instance == null)
+            instance = new ShutdownCoordinator();
+        return instance;
+    }
+
+    /**
+     * Adds a running session.
+     *
+     * @param connection the session that started
+     */
+    public void register(ServerConnection connection) {
+        this.connections.add(connection);
+    }
+
+    /**
+     * Removes a session that ended.
+     *
+     * @param connection the session that ended
+     */
+    public void unregister(ServerConnection connection) {
+        synchronized (this.connections) {
+            this.connections.remove(connection);
+            this.connections.notifyAll();
+        }
+    }
+
+    /**
+     * Adds an action that stops accepting connections, such as closing a
+     * listener, run in the first phase of the shutdown.
+     *
+     * @param action the action to run
+     */
+    public void addStopAcceptingAction(Runnable action) {
+        this.stopAcceptingActions.add(action);
+    }
+
+    /**
+     * Shuts the server down, writing the duration of each phase to the log.
+     *
+     * @param retryAfterMillis   the retry hint sent to the devices, in
+     *                           milliseconds
+     * @param drainTimeoutMillis the maximum time to wait for the requests in
+     *                           progress, in milliseconds
+     * @param persist            the action that saves the data of the server
+     */
+    public void shutdown(long retryAfterMillis, long drainTimeoutMillis, Runnable persist) {
+        long start = System.nanoTime();
+        for (Runnable action : this.stopAcceptingActions) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                LOGGER.warning(() -> "Failed to stop accepting connections: " + e.getMessage());
+            }
+        }
+        long stopped = System.nanoTime();
+
+        List<ServerConnection> draining = List.copyOf(this.connections);
+        for (ServerConnection connection : draining)
+            connection.drain(retryAfterMillis);
+        long backedOff = System.nanoTime();
+
+        long deadline = backedOff + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        awaitDrained(deadline);
+        long drained = System.nanoTime();
+
+        List<ServerConnection> unfinished = List.copyOf(this.connections);
+        for (ServerConnection connection : unfinished)
+            connection.forceClose();
+        long closed = System.nanoTime();
+
+        persist.run();
+        long persisted = System.nanoTime();
+
+        int sessions = draining.size();
+        int busy = unfinished.size();
+        LOGGER.info(() -> "Shutdown report: stop-accepting=" + millis(start, stopped) + "ms back-off="
+                + millis(stopped, backedOff) + "ms drain=" + millis(backedOff, drained) + "ms close="
+                + millis(drained, closed) + "ms persist=" + millis(closed, persisted) + "ms total="
+                + millis(start, persisted) + "ms sessions=" + sessions + " unfinished=" + busy);
+    }
+
+    /**
+     * Waits for the drained sessions to complete their requests in progress and
+     * close.
+     *
+     * @param deadlineNanos the time when to stop waiting, as given by
+     *                      {@link System#nanoTime()}
+     */
+    private void awaitDrained(long deadlineNanos) {
+        synchronized (this.connections) {
+            long remaining;
+            while (!this.connections.isEmpty() && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this.connections, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the interval between two times to milliseconds.
+     *
+     * @param from the start of the interval, in nanoseconds
+     * @param to   the end of the interval, in nanoseconds
+     * @return the length of the interval, in milliseconds
+     */
+    private static long millis(long from, long to) {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
+    }
+}
@@ -0,0 +1,610 @@
+package iotserver.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import common.OpCode;
+import common.messages.BinaryCodec;
+import common.messages.Message;
+import common.messages.MessageFraming;
+import common.messages.ProtocolHello;
+import common.messages.types.response.BusyResponseData;
+import iotserver.IoTServerSkel;
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that represents a non-blocking TLS connection of a device. All
+ *         the TLS work runs on the selector thread, except the delegated tasks
+ *         of the engine and the processing of the requests, which run on the
+ *         workers of the server, one request at a time, once the connection is
+ *         admitted.
+ */
+class TlsConnection implements AdmissionController.Candidate, ServerConnection {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(TlsConnection.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static final ShutdownCoordinator SHUTDOWN_COORDINATOR = ShutdownCoordinator.getInstance();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer[] NO_RESPONSES = { EMPTY };
+    private static final int MAX_PENDING_REQUESTS = 16;
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final SelectionKey key;
+    private final IoTServerSkel serverSkel;
+    private final int maxFrameBytes;
+    private final Queue<byte[]> requests = new ConcurrentLinkedQueue<>();
+    private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+    private final AtomicBoolean processing = new AtomicBoolean();
+    private final AtomicBoolean admitted = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicLong rejectRetryAfterMillis = new AtomicLong(-1);
+    private final long handshakeStart = System.nanoTime();
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private final IdleReaper.Entry idleEntry;
+
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private volatile boolean runningTasks = false;
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+    private volatile boolean handshakeDone = false;
+    private volatile boolean handshakeExpired = false;
+    private volatile boolean aborted = false;
+    // answer in binary once the client sent a binary frame
+    private volatile boolean binary = false;
+    // whether the first bytes of the client were checked for a hello
+    private volatile boolean negotiated = false;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param server        The server that owns the connection.
+     * @param channel       The channel of the connection.
+     * @param engine        The TLS engine of the connection.
+     * @param key           The selection key of the channel.
+     * @param serverSkel    The skeleton that processes the requests.
+     * @param maxFrameBytes The maximum size of a request frame.
+     */
+    TlsConnection(NioServer server, SocketChannel channel, SSLEngine engine, SelectionKey key,
+            IoTServerSkel serverSkel, int maxFrameBytes) {
+        this.server = server;
+        this.channel = channel;
+        this.engine = engine;
+        this.key = key;
+        this.serverSkel = serverSkel;
+        this.maxFrameBytes = maxFrameBytes;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.netOut.flip();
+        IdleReaper idleReaper = server.getIdleReaper();
+        this.idleEntry = idleReaper == null ? null : idleReaper.register(this::forceClose);
+    }
+
+    @Override
+    public void start() {
+        this.admitted.set(true);
+        if (this.closed) {
+            releaseSlot();
+            return;
+        }
+        SHUTDOWN_COORDINATOR.register(this);
+        scheduleRequests();
+        this.server.requestUpdate(this);
+    }
+
+    @Override
+    public void reject(long retryAfterMillis) {
+        // the connection is admitted before the client sends its hello, and a
+        // device that negotiates expects the answer before any frame, so the
+        // rejection waits for the hello to be answered
+        this.rejectRetryAfterMillis.set(retryAfterMillis);
+        if (this.negotiated)
+            sendReject();
+    }
+
+    /**
+     * Queues the pending rejection, if any, and closes the connection once it
+     * is sent. Only the first call queues it.
+     */
+    private void sendReject() {
+        long retryAfterMillis = this.rejectRetryAfterMillis.getAndSet(-1);
+        if (retryAfterMillis < 0)
+            return;
+        try {
+            Message busy = new Message(OpCode.BUSY, new BusyResponseData(retryAfterMillis));
+            this.responses.add(ByteBuffer.wrap(MessageFraming.encodeFrame(busy, this.binary)));
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to send busy message!");
+        }
+        this.closing = true;
+        this.server.requestUpdate(this);
+    }
+
+    /**
+     * Marks the handshake deadline of the connection as reached. The connection
+     * is closed on the selector thread if its handshake is not done by then.
+     */
+    void expireHandshake() {
+        if (this.handshakeDone)
+            return;
+        this.handshakeExpired = true;
+        this.server.requestUpdate(this);
+    }
+
+    @Override
+    public void drain(long retryAfterMillis) {
+        if (this.serverSkel.drain(retryAfterMillis))
+            reject(retryAfterMillis);
+    }
+
+    /**
+     * Marks the connection to be closed, because it is idle or the server is
+     * shutting down. The connection is closed on the selector thread.
+     */
+    @Override
+    public void forceClose() {
+        this.aborted = true;
+        this.server.requestUpdate(this);
+    }
+
+    /**
+     * Records traffic on the connection.
+     */
+    private void touch() {
+        if (this.idleEntry != null)
+            this.idleEntry.touch();
+    }
+
+    /**
+     * Reads the available bytes from the channel and processes them. Called by
+     * the selector thread when the channel is readable.
+     */
+    void read() {
+        int read;
+        try {
+            read = this.channel.read(this.netIn);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            try {
+                this.engine.closeInbound();
+            } catch (SSLException ignored) {
+                // the device closed the socket without a close_notify
+            }
+            close();
+            return;
+        }
+        touch();
+        process();
+    }
+
+    /**
+     * Advances the connection as far as possible without blocking: flushes the
+     * pending output, drives the handshake, unwraps the received records and
+     * wraps the pending responses. Called by the selector thread.
+     */
+    void process() {
+        if (this.closed)
+            return;
+        if (this.handshakeExpired && !this.handshakeDone) {
+            METRICS.increment("handshakes.timeouts");
+            close();
+            return;
+        }
+        if (this.aborted) {
+            close();
+            return;
+        }
+        try {
+            while (!this.closed) {
+                if (!flushNetOut())
+                    break;
+                if (this.closing && this.responses.isEmpty() && !this.processing.get()) {
+                    if (this.engine.isOutboundDone()) {
+                        close();
+                        return;
+                    }
+                    this.engine.closeOutbound();
+                }
+                HandshakeStatus status = this.engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    break;
+                }
+                boolean handshaking = isHandshaking(status);
+                boolean progress;
+                if (status == HandshakeStatus.NEED_WRAP || (!handshaking && !this.responses.isEmpty()))
+                    progress = wrap(handshaking);
+                else
+                    progress = this.netIn.position() > 0 && unwrap();
+                if (!progress)
+                    break;
+            }
+            if (!this.closed)
+                updateInterest();
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Connection failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Writes the pending TLS records to the channel.
+     *
+     * @return True if all the records were written, false if the channel is full.
+     * @throws IOException If it fails to write to the channel.
+     */
+    private boolean flushNetOut() throws IOException {
+        while (this.netOut.hasRemaining()) {
+            if (this.channel.write(this.netOut) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wraps the pending responses, or the handshake data, into a TLS record.
+     * Small responses that are pending together share the same record.
+     *
+     * @param handshaking True if the handshake is in progress.
+     * @return True if the engine made progress, false otherwise.
+     * @throws IOException If the engine fails.
+     */
+    private boolean wrap(boolean handshaking) throws IOException {
+        ByteBuffer[] sources = handshaking ? NO_RESPONSES : this.responses.toArray(new ByteBuffer[0]);
+        if (sources.length == 0)
+            sources = NO_RESPONSES;
+        this.netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = this.engine.wrap(sources, this.netOut);
+        } finally {
+            this.netOut.flip();
+        }
+        checkHandshakeFinished(result);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                this.netOut = enlarge(this.netOut, this.engine.getSession().getPacketBufferSize(), true);
+                return true;
+            case CLOSED:
+                this.closing = true;
+                return result.bytesProduced() > 0;
+            default:
+                ByteBuffer head;
+                while ((head = this.responses.peek()) != null && !head.hasRemaining())
+                    this.responses.poll();
+                return result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+        }
+    }
+
+    /**
+     * Unwraps the received TLS records and extracts the complete request frames.
+     *
+     * @return True if the engine made progress, false otherwise.
+     * @throws IOException If the engine fails or a frame is invalid.
+     */
+    private boolean unwrap() throws IOException {
+        this.netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = this.engine.unwrap(this.netIn, this.appIn);
+        } finally {
+            this.netIn.compact();
+        }
+        checkHandshakeFinished(result);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // doubled, so a large frame that wasn't reserved yet costs a
+                // few copies instead of one per record
+                this.appIn = resize(this.appIn, Math.max(this.appIn.capacity() * 2,
+                        this.appIn.capacity() + this.engine.getSession().getApplicationBufferSize()));
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!this.netIn.hasRemaining())
+                    this.netIn = enlarge(this.netIn, this.engine.getSession().getPacketBufferSize(), false);
+                return false;
+            case CLOSED:
+                this.closing = true;
+                return true;
+            default:
+                if (result.bytesProduced() > 0)
+                    readFrames();
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        }
+    }
+
+    /**
+     * Records the latency of the handshake, and whether it resumed a session,
+     * when an engine operation finishes it.
+     *
+     * @param result The result of the engine operation.
+     */
+    private void checkHandshakeFinished(SSLEngineResult result) {
+        if (!this.handshakeDone && result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+            this.handshakeDone = true;
+            METRICS.recordTime("handshakes", System.nanoTime() - this.handshakeStart);
+            TlsSessions.recordHandshake(this.engine.getSession(), this.handshakeStartMillis);
+        }
+    }
+
+    /**
+     * Extracts the complete frames from the decrypted input and schedules their
+     * processing. Once the header of an incomplete frame is read, the input is
+     * sized for the whole frame and a record after it, and once it is empty it
+     * goes back to the size of a record, so a connection only holds a large
+     * buffer while it receives a large frame.
+     *
+     * @throws IOException If a frame is invalid.
+     */
+    private void readFrames() throws IOException {
+        this.appIn.flip();
+        int partialFrameBytes = 0;
+        try {
+            if (!this.negotiated && !readHello())
+                return;
+            while (this.appIn.remaining() >= MessageFraming.HEADER_BYTES) {
+                int length = this.appIn.getInt(this.appIn.position());
+                // the skeleton limits the frames until the device logs in,
+                // so the header of a frame can't reserve a large buffer
+                MessageFraming.checkFrameLength(length,
+                        Math.min(this.maxFrameBytes, this.serverSkel.getMaxFrameBytes()));
+                if (this.appIn.remaining() < MessageFraming.HEADER_BYTES + length) {
+                    partialFrameBytes = MessageFraming.HEADER_BYTES + length;
+                    break;
+                }
+                this.appIn.getInt();
+                byte[] payload = new byte[length];
+                this.appIn.get(payload);
+                this.requests.add(payload);
+                this.pendingRequests.incrementAndGet();
+            }
+        } finally {
+            this.appIn.compact();
+        }
+        int recordBytes = this.engine.getSession().getApplicationBufferSize();
+        if (partialFrameBytes > 0 && this.appIn.capacity() < partialFrameBytes + recordBytes)
+            this.appIn = resize(this.appIn, partialFrameBytes + recordBytes);
+        else if (this.appIn.position() == 0 && this.appIn.capacity() > recordBytes)
+            this.appIn = ByteBuffer.allocate(recordBytes);
+        scheduleRequests();
+    }
+
+    /**
+     * Reads the hello of the client, if it starts with one, and queues the
+     * answer before any response. The {@code nio} transport only accepts
+     * framed clients, so the connection closes if the client didn't offer
+     * frames.
+     *
+     * @return True if the frames can be read, false if more bytes are needed.
+     * @throws IOException If the hello is invalid.
+     */
+    private boolean readHello() throws IOException {
+        if (this.appIn.remaining() < 2)
+            return false;
+        if (!ProtocolHello.isHelloStart(this.appIn.get(0), this.appIn.get(1))) {
+            METRICS.increment("protocol.legacy");
+            this.negotiated = true;
+            sendReject();
+            return true;
+        }
+        if (this.appIn.remaining() < ProtocolHello.HELLO_BYTES)
+            return false;
+        ProtocolHello agreed = ProtocolHello.fromBytes(this.appIn).negotiate(IoTServerSkel.supportedFeatures());
+        METRICS.increment("protocol.negotiated");
+        this.responses.add(ByteBuffer.wrap(agreed.toBytes()));
+        this.serverSkel.setProtocol(agreed);
+        this.binary = agreed.hasFeature(ProtocolHello.FEATURE_BINARY_CODEC);
+        this.negotiated = true;
+        sendReject();
+        if (!agreed.hasFeature(ProtocolHello.FEATURE_FRAMES)) {
+            LOGGER.warning(() -> "Client didn't offer frames!");
+            this.closing = true;
+        }
+        this.server.requestUpdate(this);
+        return true;
+    }
+
+    /**
+     * Starts processing the pending requests on a worker, unless a worker is
+     * already doing it.
+     */
+    private void scheduleRequests() {
+        if (!this.admitted.get() || this.requests.isEmpty() || !this.processing.compareAndSet(false, true))
+            return;
+        try {
+            this.server.getWorkers().execute(this::processRequests);
+        } catch (RejectedExecutionException e) {
+            this.processing.set(false);
+            this.closing = true;
+        }
+    }
+
+    /**
+     * Processes the pending requests in order. Runs on a worker.
+     */
+    private void processRequests() {
+        byte[] payload;
+        while (!this.closing && (payload = this.requests.poll()) != null) {
+            this.pendingRequests.decrementAndGet();
+            touch();
+            try {
+                if (BinaryCodec.isBinary(payload))
+                    this.binary = true;
+                Message request = MessageFraming.decodePayload(payload);
+                Message response = this.serverSkel.processMessage(request);
+                if (response != null)
+                    this.responses.add(ByteBuffer.wrap(MessageFraming.encodeFrame(response, this.binary)));
+                if (this.serverSkel.isDraining() && !this.serverSkel.isClosing()) {
+                    this.responses.add(ByteBuffer.wrap(
+                            MessageFraming.encodeFrame(this.serverSkel.getDrainNotice(), this.binary)));
+                    this.serverSkel.closeConnection();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                LOGGER.warning(() -> "Couldn't read client message!");
+                this.serverSkel.closeConnection();
+            }
+            touch();
+            if (this.serverSkel.isClosing())
+                this.closing = true;
+            this.server.requestUpdate(this);
+        }
+        this.processing.set(false);
+        if (this.closing) {
+            this.requests.clear();
+            this.pendingRequests.set(0);
+        } else {
+            scheduleRequests();
+        }
+        this.server.requestUpdate(this);
+    }
+
+    /**
+     * Runs the delegated tasks of the engine on a worker, so the selector thread
+     * is not blocked by the handshake cryptography.
+     */
+    private void runDelegatedTasks() {
+        if (this.runningTasks)
+            return;
+        this.runningTasks = true;
+        try {
+            this.server.getWorkers().execute(() -> {
+                Runnable task;
+                while ((task = this.engine.getDelegatedTask()) != null)
+                    task.run();
+                this.runningTasks = false;
+                this.server.requestUpdate(this);
+            });
+        } catch (RejectedExecutionException e) {
+            this.runningTasks = false;
+            close();
+        }
+    }
+
+    /**
+     * Updates the operations the selector waits for on this connection. Reading
+     * stops while too many requests are waiting to be processed, and once the
+     * connection is closing, unless the handshake still needs the device.
+     */
+    private void updateInterest() {
+        int ops = 0;
+        boolean readable = !this.closing || isHandshaking(this.engine.getHandshakeStatus());
+        if (readable && this.pendingRequests.get() < MAX_PENDING_REQUESTS)
+            ops |= SelectionKey.OP_READ;
+        if (this.netOut.hasRemaining())
+            ops |= SelectionKey.OP_WRITE;
+        this.key.interestOps(ops);
+    }
+
+    /**
+     * Closes the connection and turns off the device of the session.
+     */
+    void close() {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.closing = true;
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            LOGGER.warning(() -> "Failed to close socket connection!");
+        }
+        this.serverSkel.closeConnection();
+        SHUTDOWN_COORDINATOR.unregister(this);
+        if (this.idleEntry != null)
+            this.idleEntry.cancel();
+        if (this.admitted.get())
+            releaseSlot();
+    }
+
+    /**
+     * Gives back the admission slot of the connection, once.
+     */
+    private void releaseSlot() {
+        if (this.released.compareAndSet(false, true))
+            this.server.getAdmissionController().release();
+    }
+
+    /**
+     * Checks if the engine is in the middle of a handshake.
+     *
+     * @param status The handshake status of the engine.
+     * @return True if the engine is handshaking, false otherwise.
+     */
+    private static boolean isHandshaking(HandshakeStatus status) {
+        return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Creates a bigger copy of a buffer, keeping its content.
+     *
+     * @param buffer  The buffer to enlarge.
+     * @param extra   The number of bytes to add to its capacity.
+     * @param flipped True if the buffer is in read mode, false if it is in write
+     *                mode.
+     * @return The enlarged buffer, in the same mode as the original.
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int extra, boolean flipped) {
+        return resize(buffer, buffer.capacity() + extra, flipped);
+    }
+
+    /**
+     * Creates a copy of a buffer in write mode with a new capacity, keeping its
+     * content.
+     *
+     * @param buffer   The buffer to resize.
+     * @param capacity The capacity of the copy, at least the content of the
+     *                 buffer.
+     * @return The resized buffer, in write mode.
+     */
+    private static ByteBuffer resize(ByteBuffer buffer, int capacity) {
+        return resize(buffer, capacity, false);
+    }
+
+    /**
+     * Creates a copy of a buffer with a new capacity, keeping its content.
+     *
+     * @param buffer   The buffer to resize.
+     * @param capacity The capacity of the copy, at least the content of the
+     *                 buffer.
+     * @param flipped  True if the buffer is in read mode, false if it is in write
+     *                 mode.
+     * @return The resized buffer, in the same mode as the original.
+     */
+    private static ByteBuffer resize(ByteBuffer buffer, int capacity, boolean flipped) {
+        ByteBuffer resized = ByteBuffer.allocate(capacity);
+        if (!flipped)
+            buffer.flip();
+        resized.put(buffer);
+        if (flipped)
+            resized.flip();
+        return resized;
+    }
+}
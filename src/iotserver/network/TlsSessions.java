@@ -0,0 +1,70 @@
+package iotserver.network;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Utility class that configures the TLS session resumption of the
+ *         server, so reconnecting devices skip the full handshake, and counts
+ *         how many handshakes resume a session.
+ */
+public class TlsSessions {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(TlsSessions.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+
+    /**
+     * Private constructor of the class.
+     */
+    private TlsSessions() {
+        throw new UnsupportedOperationException("Cannot create instance of " + getClass().getName());
+    }
+
+    /**
+     * Configures the session cache and the session tickets of the default TLS
+     * context. The ticket properties are read by the JDK only once, so this must
+     * run before the first TLS socket or engine is created.
+     *
+     * @param commandLineArgs The command line arguments of the program.
+     */
+    public static void configure(CommandLineArgs commandLineArgs) {
+        boolean tickets = commandLineArgs.getBooleanOption("tls-tickets", true);
+        long rotationSeconds = commandLineArgs.getLongOption("tls-ticket-rotation", 3600);
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", Boolean.toString(tickets));
+        System.setProperty("jdk.tls.server.statelessKeyTimeout", Long.toString(rotationSeconds));
+        try {
+            SSLSessionContext sessionContext = SSLContext.getDefault().getServerSessionContext();
+            sessionContext.setSessionCacheSize(commandLineArgs.getIntOption("tls-session-cache", 20480));
+            sessionContext.setSessionTimeout(commandLineArgs.getIntOption("tls-session-timeout", 86400));
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.warning(() -> "Failed to configure the TLS session cache!");
+        }
+    }
+
+    /**
+     * Counts a completed handshake as resumed or full. A resumed session keeps
+     * the creation time of the handshake that created it, which is older than
+     * the start of the current handshake.
+     *
+     * @param session     The session of the completed handshake.
+     * @param startMillis The wall clock time when the handshake started.
+     */
+    public static void recordHandshake(SSLSession session, long startMillis) {
+        if (session.getCreationTime() < startMillis)
+            METRICS.increment("tls.handshakes.resumed");
+        else
+            METRICS.increment("tls.handshakes.full");
+    }
+}
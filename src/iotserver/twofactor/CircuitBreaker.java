@@ -0,0 +1,87 @@
+package iotserver.twofactor;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that stops the calls to a failing service. After a number of
+ *         consecutive failures the breaker opens and rejects every call for a
+ *         while. Then a single trial call is let through: its success closes
+ *         the breaker, its failure opens it again.
+ */
+public class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private int failures;
+    private long openedAt;
+    private boolean open;
+    private boolean trialRunning;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param failureThreshold the consecutive failures that open the breaker
+     * @param openMillis       the time the breaker stays open
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = openMillis * 1_000_000;
+    }
+
+    /**
+     * Checks if a call may be made. Once the breaker was open for long enough,
+     * only the first caller is let through, as the trial call.
+     *
+     * @return true if the call may be made, false if it must be rejected
+     */
+    public synchronized boolean allowRequest() {
+        if (!this.open)
+            return true;
+        if (this.trialRunning || System.nanoTime() - this.openedAt < this.openNanos)
+            return false;
+        this.trialRunning = true;
+        return true;
+    }
+
+    /**
+     * Gives back a permission to call that wasn't used, so a trial call that
+     * never ran doesn't keep the breaker open.
+     */
+    public synchronized void release() {
+        this.trialRunning = false;
+    }
+
+    /**
+     * Records a successful call, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        this.failures = 0;
+        this.open = false;
+        this.trialRunning = false;
+    }
+
+    /**
+     * Records a failed call, opening the breaker if it was the trial call or
+     * the failures reached the threshold.
+     */
+    public synchronized void recordFailure() {
+        this.failures++;
+        if (this.trialRunning || this.failures >= this.failureThreshold) {
+            this.open = true;
+            this.openedAt = System.nanoTime();
+            this.trialRunning = false;
+        }
+    }
+
+    /**
+     * Checks if the breaker is open.
+     *
+     * @return true if the calls are being rejected, false otherwise
+     */
+    public synchronized boolean isOpen() {
+        return this.open;
+    }
+}
@@ -0,0 +1,52 @@
+package iotserver.twofactor;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that delivers the 2FA codes by email, through the HTTP API of
+ *         the course. Every request has a connect and a read timeout, so a slow
+ *         API can't hold a thread of the dispatcher for long.
+ */
+public class HttpTwoFactorProvider implements TwoFactorProvider {
+
+    public static final String EMAIL_API_URL = "https://lmpinto.eu.pythonanywhere.com/2FA?e=%s&c=%s&a=%s";
+
+    private final String apiKey;
+    private final int timeoutMillis;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param apiKey        the key of the API
+     * @param timeoutMillis the connect and read timeout of each request
+     */
+    public HttpTwoFactorProvider(String apiKey, int timeoutMillis) {
+        this.apiKey = apiKey;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void send(String userId, String code) throws IOException {
+        String url = String.format(EMAIL_API_URL, URLEncoder.encode(userId, StandardCharsets.UTF_8), code,
+                URLEncoder.encode(this.apiKey, StandardCharsets.UTF_8));
+        HttpURLConnection http = (HttpURLConnection) URI.create(url).toURL().openConnection();
+        try {
+            http.setRequestMethod("GET");
+            http.setConnectTimeout(this.timeoutMillis);
+            http.setReadTimeout(this.timeoutMillis);
+            int status = http.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException("2FA API answered with status " + status);
+        } finally {
+            http.disconnect();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package iotserver.twofactor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import iotserver.utils.ServerLogger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Class that stands in for the email API in tests and benchmarks. It
+ *         keeps the last code of each user and writes it to the log, after an
+ *         optional delay that mimics the latency of the API. It must never be
+ *         used in production, since anyone with the log can log in.
+ */
+public class StubTwoFactorProvider implements TwoFactorProvider {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(StubTwoFactorProvider.class.getSimpleName());
+
+    private final Map<String, String> codes = new ConcurrentHashMap<>();
+    private final long delayMillis;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param delayMillis the time each delivery takes
+     */
+    public StubTwoFactorProvider(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public void send(String userId, String code) throws IOException {
+        if (this.delayMillis > 0) {
+            try {
+                Thread.sleep(this.delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while delivering the 2FA code");
+            }
+        }
+        this.codes.put(userId, code);
+        LOGGER.info(() -> "2FA code of " + userId + ": " + code);
+    }
+
+    /**
+     * Gets the last code delivered to a user.
+     *
+     * @param userId the id of the user
+     * @return the last code of the user, or null if none was delivered
+     */
+    public String getLastCode(String userId) {
+        return this.codes.get(userId);
+    }
+}
@@ -0,0 +1,194 @@
+package iotserver.twofactor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import iotserver.utils.CommandLineArgs;
+import iotserver.utils.ServerLogger;
+import iotserver.utils.ServerMetrics;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that delivers the 2FA codes in the background, so a
+ *         login doesn't wait for the provider. The deliveries run on a bounded
+ *         pool, failed ones are retried with an exponential backoff with full
+ *         jitter, and a circuit breaker rejects the logins at once while the
+ *         provider keeps failing, instead of piling up deliveries that will
+ *         fail too.
+ */
+public class TwoFactorDispatcher {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(TwoFactorDispatcher.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static TwoFactorDispatcher instance;
+
+    private final TwoFactorProvider provider;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService retryScheduler;
+    private final CircuitBreaker breaker;
+    private final int maxRetries;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * Constructor of the class.
+     *
+     * @param provider         the provider that delivers the codes
+     * @param threads          the number of deliveries that may run at once
+     * @param queueSize        the number of deliveries that may wait for a thread
+     * @param breaker          the breaker of the provider
+     * @param maxRetries       the retries of a failed delivery
+     * @param backoffMillis    the base delay of the first retry
+     * @param maxBackoffMillis the maximum delay of a retry
+     */
+    public TwoFactorDispatcher(TwoFactorProvider provider, int threads, int queueSize, CircuitBreaker breaker,
+            int maxRetries, long backoffMillis, long maxBackoffMillis) {
+        AtomicInteger counter = new AtomicInteger();
+        this.provider = provider;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "2fa-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "2fa-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.breaker = breaker;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = Math.max(1, backoffMillis);
+        this.maxBackoffMillis = Math.max(this.backoffMillis, maxBackoffMillis);
+        METRICS.registerGauge("2fa.queued", () -> this.executor.getQueue().size());
+        METRICS.registerGauge("2fa.breakerOpen", () -> this.breaker.isOpen() ? 1 : 0);
+    }
+
+    /**
+     * Creates the dispatcher of the server from the {@code --2fa-*} options.
+     *
+     * @param commandLineArgs the command line arguments of the program
+     */
+    public static synchronized void init(CommandLineArgs commandLineArgs) {
+        int timeout = commandLineArgs.getIntOption("2fa-timeout", 5000);
+        TwoFactorProvider provider;
+        if (commandLineArgs.getOption("2fa-provider", "http").equals("stub")) {
+            provider = new StubTwoFactorProvider(commandLineArgs.getLongOption("2fa-stub-delay", 0));
+            LOGGER.warning(() -> "2FA codes are written to the log by the stub provider!");
+        } else {
+            provider = new HttpTwoFactorProvider(commandLineArgs.getApiKey(), timeout);
+        }
+        instance = new TwoFactorDispatcher(provider,
+                Math.max(1, commandLineArgs.getIntOption("2fa-threads", 4)),
+                Math.max(1, commandLineArgs.getIntOption("2fa-queue", 256)),
+                new CircuitBreaker(commandLineArgs.getIntOption("2fa-breaker-failures", 5),
+                        commandLineArgs.getLongOption("2fa-breaker-millis", 30000)),
+                Math.max(0, commandLineArgs.getIntOption("2fa-retries", 5)),
+                commandLineArgs.getLongOption("2fa-backoff", 500),
+                commandLineArgs.getLongOption("2fa-max-backoff", 10000));
+    }
+
+    /**
+     * Gets the instance of the TwoFactorDispatcher
+     *
+     * @return the instance of the TwoFactorDispatcher
+     * @throws IllegalStateException if the dispatcher was not created
+     */
+    public static synchronized TwoFactorDispatcher getInstance() {
+        if (instance == null)
+            throw new IllegalStateException("2FA dispatcher was not initialized!");
+        return instance;
+    }
+
+    /**
+     * Gets the provider that delivers the codes.
+     *
+     * @return the provider of the dispatcher
+     */
+    public TwoFactorProvider getProvider() {
+        return this.provider;
+    }
+
+    /**
+     * Queues the delivery of a 2FA code.
+     *
+     * @param userId the id of the user
+     * @param code   the code to deliver
+     * @return true if the delivery was queued, false if the breaker is open or
+     *         the queue is full
+     */
+    public boolean dispatch(String userId, String code) {
+        if (!this.breaker.allowRequest()) {
+            METRICS.increment("2fa.rejected");
+            return false;
+        }
+        if (submit(userId, code, 0, System.nanoTime()))
+            return true;
+        this.breaker.release();
+        return false;
+    }
+
+    /**
+     * Submits an attempt of a delivery to the pool.
+     *
+     * @param userId  the id of the user
+     * @param code    the code to deliver
+     * @param attempt the number of the attempt, starting at 0
+     * @param start   the time the delivery was queued, in nanoseconds
+     * @return true if the attempt was submitted, false if the pool is full
+     */
+    private boolean submit(String userId, String code, int attempt, long start) {
+        try {
+            this.executor.execute(() -> attempt(userId, code, attempt, start));
+            return true;
+        } catch (RejectedExecutionException e) {
+            METRICS.increment("2fa.rejected");
+            return false;
+        }
+    }
+
+    /**
+     * Makes an attempt of a delivery, scheduling a retry if it fails.
+     *
+     * @param userId  the id of the user
+     * @param code    the code to deliver
+     * @param attempt the number of the attempt, starting at 0
+     * @param start   the time the delivery was queued, in nanoseconds
+     */
+    private void attempt(String userId, String code, int attempt, long start) {
+        try {
+            this.provider.send(userId, code);
+            this.breaker.recordSuccess();
+            METRICS.increment("2fa.sent");
+            METRICS.recordTime("2fa.delivery", System.nanoTime() - start);
+            return;
+        } catch (Exception e) {
+            this.breaker.recordFailure();
+            LOGGER.warning(() -> "Failed to deliver 2FA code to " + userId + " (attempt " + (attempt + 1) + "): "
+                    + e.getMessage());
+        }
+        if (attempt >= this.maxRetries || this.breaker.isOpen()) {
+            METRICS.increment("2fa.failed");
+            return;
+        }
+        METRICS.increment("2fa.retries");
+        // full jitter, so the retries of a burst of logins don't hit the
+        // provider at the same time
+        long ceiling = Math.min(this.maxBackoffMillis, this.backoffMillis << Math.min(attempt, 20));
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        this.retryScheduler.schedule(() -> {
+            if (!submit(userId, code, attempt + 1, start))
+                METRICS.increment("2fa.failed");
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
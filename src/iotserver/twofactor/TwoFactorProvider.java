@@ -0,0 +1,24 @@
+package iotserver.twofactor;
+
+import java.io.IOException;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         Interface of a service that delivers the 2FA codes to the users. A
+ *         provider makes a single attempt; the retries are left to the
+ *         {@link TwoFactorDispatcher}.
+ */
+public interface TwoFactorProvider {
+
+    /**
+     * Delivers a 2FA code to a user.
+     *
+     * @param userId the id of the user, which is its email
+     * @param code   the code to deliver
+     * @throws IOException if the code couldn't be delivered
+     */
+    void send(String userId, String code) throws IOException;
+}
@@ -0,0 +1,181 @@
+package iotserver.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.logging.Logger;
+
+import common.Utils;
+import iotserver.persistance.PersistanceUtils;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that keeps the reference the devices are attested
+ *         against. The client details file is verified and the reference jar
+ *         is hashed once, keeping the state of the digest after the jar, so a
+ *         login only hashes its nonce on a copy of that state. Both files are
+ *         read again when their modification time or size changes.
+ */
+public class AttestationReference {
+
+    public static final String CLIENT_DETAILS_FILE = "clientDetails.txt";
+
+    private static final Logger LOGGER = ServerLogger.getLogger(AttestationReference.class.getSimpleName());
+    private static final ServerMetrics METRICS = ServerMetrics.getInstance();
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static AttestationReference instance;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Class that represents the digest of the reference jar, with the
+     * attributes of the files it was computed from.
+     */
+    private static final class Snapshot {
+
+        private final Path jarPath;
+        private final long[] stamps;
+        private final MessageDigest jarDigest;
+
+        /**
+         * Constructor of the class.
+         *
+         * @param jarPath   the path of the reference jar
+         * @param stamps    the attributes of the client details file and the jar
+         * @param jarDigest the digest after the bytes of the jar, never updated
+         */
+        private Snapshot(Path jarPath, long[] stamps, MessageDigest jarDigest) {
+            this.jarPath = jarPath;
+            this.stamps = stamps;
+            this.jarDigest = jarDigest;
+        }
+    }
+
+    /**
+     * Private constructor of the class.
+     */
+    private AttestationReference() {
+    }
+
+    /**
+     * Gets the instance of the AttestationReference
+     *
+     * @return the instance of the AttestationReference
+     */
+    public static synchronized AttestationReference getInstance() {
+        if (instance == null)
+            instance = new AttestationReference();
+        return instance;
+    }
+
+    /**
+     * Computes the hash a device must send for a nonce: the SHA-256 of the
+     * reference jar followed by the nonce.
+     *
+     * @param nonce     the nonce sent to the device
+     * @param secretKey the key of the hmac of the client details file
+     * @return the expected hash
+     * @throws IOException              if it fails to read the files
+     * @throws GeneralSecurityException if the client details file is not valid
+     */
+    public byte[] expectedHash(long nonce, Key secretKey) throws IOException, GeneralSecurityException {
+        Snapshot current = this.snapshot;
+        if (current == null || !Arrays.equals(current.stamps, stamps(current.jarPath))) {
+            current = load(secretKey);
+        }
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) current.jarDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new GeneralSecurityException("SHA-256 digest can't be cloned", e);
+        }
+        return digest.digest(Utils.longToBytes(nonce));
+    }
+
+    /**
+     * Verifies the client details file and hashes the reference jar, so the
+     * first login doesn't have to.
+     *
+     * @param secretKey the key of the hmac of the client details file
+     * @throws IOException              if it fails to read the files
+     * @throws GeneralSecurityException if the client details file is not valid
+     */
+    public void preload(Key secretKey) throws IOException, GeneralSecurityException {
+        load(secretKey);
+    }
+
+    /**
+     * Verifies the client details file and hashes the reference jar it names,
+     * unless another thread just did it.
+     *
+     * @param secretKey the key of the hmac of the client details file
+     * @return the new snapshot
+     * @throws IOException              if it fails to read the files
+     * @throws GeneralSecurityException if the client details file is not valid
+     */
+    private synchronized Snapshot load(Key secretKey) throws IOException, GeneralSecurityException {
+        Snapshot current = this.snapshot;
+        if (current != null && Arrays.equals(current.stamps, stamps(current.jarPath)))
+            return current;
+        File detailsFile = new File(CLIENT_DETAILS_FILE);
+        if (!detailsFile.exists())
+            throw new FileNotFoundException("Client details file not found!");
+        List<String> lines = Files.readAllLines(detailsFile.toPath());
+        if (lines.size() < 2)
+            throw new IOException("Invalid " + CLIENT_DETAILS_FILE + " file!");
+        String filePath = lines.get(0);
+        byte[] fileHmac;
+        try {
+            fileHmac = Base64.getDecoder().decode(lines.get(1));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Invalid " + CLIENT_DETAILS_FILE + " hmac!", e);
+        }
+        if (!MessageDigest.isEqual(PersistanceUtils.hmac(filePath.getBytes(), secretKey), fileHmac))
+            throw new GeneralSecurityException("Invalid " + CLIENT_DETAILS_FILE + " hmac!");
+        Path jarPath = new File(filePath).toPath();
+        // the attributes are read before the files, so a change while reading
+        // them is seen by the next login
+        long[] stamps = stamps(jarPath);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try (InputStream in = Files.newInputStream(jarPath)) {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+        Snapshot loaded = new Snapshot(jarPath, stamps, digest);
+        this.snapshot = loaded;
+        METRICS.increment("attestation.reloads");
+        LOGGER.info(() -> "Hashed attestation reference " + filePath);
+        return loaded;
+    }
+
+    /**
+     * Gets the modification time and the size of the client details file and
+     * of the reference jar.
+     *
+     * @param jarPath the path of the reference jar
+     * @return the attributes of both files
+     * @throws IOException if it fails to read the attributes
+     */
+    private static long[] stamps(Path jarPath) throws IOException {
+        BasicFileAttributes details = Files.readAttributes(new File(CLIENT_DETAILS_FILE).toPath(),
+                BasicFileAttributes.class);
+        BasicFileAttributes jar = Files.readAttributes(jarPath, BasicFileAttributes.class);
+        return new long[] { details.lastModifiedTime().toMillis(), details.size(),
+                jar.lastModifiedTime().toMillis(), jar.size() };
+    }
+}
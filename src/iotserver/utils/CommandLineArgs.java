@@ -1,5 +1,10 @@
 package iotserver.utils;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import common.CommandLineArgsParseException;
 
 /**
@@ -17,6 +22,7 @@ public class CommandLineArgs {
     private final String keyStore;
     private final String keyStorePassword;
     private final String apiKey;
+    private final Map<String, String> options;
 
     /**
      * Constructor of the class
@@ -27,13 +33,16 @@ public class CommandLineArgs {
      * @param keyStore         the keystore
      * @param keyStorePassword the keystore password
      * @param apiKey           the API key
+     * @param options          the optional {@code --name=value} arguments
      */
-    private CommandLineArgs(int port, String cipherPassword, String keyStore, String keyStorePassword, String apiKey) {
+    private CommandLineArgs(int port, String cipherPassword, String keyStore, String keyStorePassword, String apiKey,
+            Map<String, String> options) {
         this.port = port;
         this.cipherPassword = cipherPassword;
         this.keyStore = keyStore;
         this.keyStorePassword = keyStorePassword;
         this.apiKey = apiKey;
+        this.options = options;
     }
 
     /**
@@ -43,10 +52,24 @@ public class CommandLineArgs {
      * @return the command line arguments
      * @throws CommandLineArgsParseException if the number of arguments is invalid
      */
-    public static CommandLineArgs parse(String[] args) throws CommandLineArgsParseException {
+    public static CommandLineArgs parse(String[] rawArgs) throws CommandLineArgsParseException {
+        Map<String, String> options = new HashMap<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : rawArgs) {
+            if (arg.startsWith("--")) {
+                int separator = arg.indexOf('=');
+                if (separator < 0)
+                    options.put(arg.substring(2), "true");
+                else
+                    options.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        String[] args = positional.toArray(new String[0]);
         if (args.length != 4 && args.length != 5) {
             System.err.println(
-                    "Usage: java -jar IoTServer.jar [port] <cipher-password> <keystore> <keystore-password> <2FA-APIkey>");
+                    "Usage: java -jar IoTServer.jar [port] <cipher-password> <keystore> <keystore-password> <2FA-APIkey> [--option=value...]");
             throw new CommandLineArgsParseException("Invalid number of arguments!");
         }
         int port = 12345;
@@ -61,7 +84,7 @@ public class CommandLineArgs {
         String keyStore = args.length == 4 ? args[1] : args[2];
         String keyStorePassword = args.length == 4 ? args[2] : args[3];
         String apiKey = args.length == 4 ? args[3] : args[4];
-        return new CommandLineArgs(port, cipherPassword, keyStore, keyStorePassword, apiKey);
+        return new CommandLineArgs(port, cipherPassword, keyStore, keyStorePassword, apiKey, options);
     }
 
     /**
@@ -109,4 +132,65 @@ public class CommandLineArgs {
     public String getApiKey() {
         return apiKey;
     }
+
+    /**
+     * Method that returns the value of an optional argument.
+     * 
+     * @param name         the name of the option, without the leading dashes
+     * @param defaultValue the value to return if the option was not given
+     * @return the value of the option or the default value
+     */
+    public String getOption(String name, String defaultValue) {
+        return this.options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Method that returns the value of an optional integer argument.
+     * 
+     * @param name         the name of the option, without the leading dashes
+     * @param defaultValue the value to return if the option was not given
+     * @return the value of the option or the default value
+     * @throws IllegalArgumentException if the option is not a valid integer
+     */
+    public int getIntOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Method that returns the value of an optional long argument.
+     * 
+     * @param name         the name of the option, without the leading dashes
+     * @param defaultValue the value to return if the option was not given
+     * @return the value of the option or the default value
+     * @throws IllegalArgumentException if the option is not a valid long
+     */
+    public long getLongOption(String name, long defaultValue) {
+        String value = this.options.get(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Method that returns the value of an optional boolean argument.
+     * 
+     * @param name         the name of the option, without the leading dashes
+     * @param defaultValue the value to return if the option was not given
+     * @return the value of the option or the default value
+     */
+    public boolean getBooleanOption(String name, boolean defaultValue) {
+        String value = this.options.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
 }
@@ -4,6 +4,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
@@ -16,6 +17,11 @@ import java.util.logging.Logger;
  */
 public class ServerLogger {
 
+    static {
+        // must be set before the first logger is created
+        System.setProperty("java.util.logging.manager", ShutdownSafeLogManager.class.getName());
+    }
+
     /**
      * Constructor of the class
      */
@@ -38,6 +44,19 @@ public class ServerLogger {
         return logger;
     }
 
+    /**
+     * Class that represents a log manager that keeps its handlers when the
+     * program ends, so the shutdown hooks can still write to the log. The
+     * default manager resets them from its own shutdown hook, racing with ours.
+     */
+    public static class ShutdownSafeLogManager extends LogManager {
+
+        @Override
+        public void reset() {
+            // the console handlers flush every record, so there is nothing to close
+        }
+    }
+
     /**
      * Private class that represents a formatter for the logger.
      */
@@ -0,0 +1,178 @@
+package iotserver.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * @author 58180 Rodrigo Correia
+ * @author 58188 Laura Cunha
+ * @author 58199 Daniela Camarinha
+ *
+ *         A singleton class that keeps the counters, gauges and latency timers
+ *         of the server and periodically writes them to the log.
+ */
+public class ServerMetrics {
+
+    private static final Logger LOGGER = ServerLogger.getLogger(ServerMetrics.class.getSimpleName());
+    private static ServerMetrics instance;
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, long[]> rates = new ConcurrentHashMap<>();
+
+    /**
+     * Class that represents a latency timer, keeping the number of samples, their
+     * total and the maximum since the last report.
+     */
+    private static class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        /**
+         * Records a sample.
+         *
+         * @param nanos the duration of the sample, in nanoseconds
+         */
+        private void record(long nanos) {
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    /**
+     * Private constructor of the class.
+     */
+    private ServerMetrics() {
+    }
+
+    /**
+     * Gets the instance of the ServerMetrics
+     *
+     * @return the instance of the ServerMetrics
+     */
+    public static synchronized ServerMetrics getInstance() {
+        if (instance == null)
+            instance = new ServerMetrics();
+        return instance;
+    }
+
+    /**
+     * Adds one to a counter, creating it if needed.
+     *
+     * @param name the name of the counter
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds a value to a counter, creating it if needed.
+     *
+     * @param name  the name of the counter
+     * @param delta the value to add
+     */
+    public void add(String name, long delta) {
+        this.counters.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Gets the current value of a counter.
+     *
+     * @param name the name of the counter
+     * @return the value of the counter, or 0 if it doesn't exist
+     */
+    public long getCounter(String name) {
+        LongAdder counter = this.counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Registers a gauge, whose value is read each time the metrics are reported.
+     *
+     * @param name  the name of the gauge
+     * @param gauge the supplier of the value of the gauge
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Reports the rate of a counter per second, between consecutive reports,
+     * next to its value.
+     *
+     * @param name the name of the counter
+     */
+    public void registerRate(String name) {
+        this.rates.put(name, new long[] { getCounter(name), System.nanoTime() });
+    }
+
+    /**
+     * Records the duration of an operation in a latency timer, creating it if
+     * needed.
+     *
+     * @param name  the name of the timer
+     * @param nanos the duration of the operation, in nanoseconds
+     */
+    public void recordTime(String name, long nanos) {
+        this.timers.computeIfAbsent(name, n -> new Timer()).record(nanos);
+    }
+
+    /**
+     * Builds a report with the current value of all the metrics, sorted by name.
+     * Timers are reported as their count, average and maximum in microseconds,
+     * and their maximum and the rates start over after each report.
+     *
+     * @return the report of the metrics
+     */
+    public String report() {
+        Map<String, Long> values = new TreeMap<>();
+        this.counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        this.gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        long now = System.nanoTime();
+        this.rates.forEach((name, last) -> {
+            synchronized (last) {
+                long value = getCounter(name);
+                long elapsed = Math.max(1, now - last[1]);
+                values.put(name + ".perSecond", (value - last[0]) * 1_000_000_000L / elapsed);
+                last[0] = value;
+                last[1] = now;
+            }
+        });
+        this.timers.forEach((name, timer) -> {
+            long count = timer.count.sum();
+            values.put(name + ".count", count);
+            values.put(name + ".avgMicros", count == 0 ? 0 : timer.totalNanos.sum() / count / 1000);
+            values.put(name + ".maxMicros", timer.maxNanos.getAndSet(0) / 1000);
+        });
+        StringBuilder builder = new StringBuilder("metrics:");
+        values.forEach((name, value) -> builder.append(' ').append(name).append('=').append(value));
+        return builder.toString();
+    }
+
+    /**
+     * Starts writing the report of the metrics to the log periodically.
+     *
+     * @param intervalSeconds the interval between reports, in seconds
+     */
+    public void startReporting(long intervalSeconds) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> LOGGER.info(this::report), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+}